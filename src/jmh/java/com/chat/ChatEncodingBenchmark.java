@@ -0,0 +1,53 @@
+package com.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Compares the cost of a chat line on the wire: building and reading the original "username: text" string (sent as
+// a TextMessage, i.e. UTF-8 on the wire) against encoding and decoding the binary envelope. Run with
+// -Pjmh.profiler=gc to compare allocation rates.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChatEncodingBenchmark {
+
+    private final String username = "someuser";
+    private final String text = "Has anyone looked at the listener metrics from last night's load test?";
+
+    private final EnvelopeCodec codec = new EnvelopeCodec();
+    private final Envelope envelope = new Envelope().set(Envelope.CHAT, "someroom", username, text);
+
+    private byte[] textPayload;
+    private byte[] binaryPayload;
+
+    @Setup
+    public void setUp() {
+        textPayload = (username + ": " + text).getBytes(StandardCharsets.UTF_8);
+        binaryPayload = codec.encode(envelope);
+    }
+
+    @Benchmark
+    public Object encodeText() {
+        return (username + ": " + text).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object encodeBinary() {
+        return codec.encode(envelope);
+    }
+
+    @Benchmark
+    public Object decodeTextLine() {
+        return new String(textPayload, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object decodeBinaryLine() {
+        return codec.decodeLine(binaryPayload);
+    }
+}
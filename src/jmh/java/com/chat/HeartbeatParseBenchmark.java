@@ -0,0 +1,51 @@
+package com.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Compares parsing the heartbeat requests clients send on chat/heartbeat in the original "<user>-join-<room>" text
+// format against decoding the binary envelope. Run with -Pjmh.profiler=gc to compare allocation rates.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeartbeatParseBenchmark {
+
+    private final String textJoin = "someuser-join-someroom";
+    private final String textLeave = "someuser-leave-chat/rooms/someroom";
+
+    private byte[] binaryJoin;
+    private byte[] binaryLeave;
+
+    private final EnvelopeCodec codec = new EnvelopeCodec();
+    private final Envelope envelope = new Envelope();
+
+    @Setup
+    public void setUp() {
+        binaryJoin = codec.encode(new Envelope().set(Envelope.JOIN, "someroom", "someuser", ""));
+        binaryLeave = codec.encode(new Envelope().set(Envelope.LEAVE, "someroom", "someuser", ""));
+    }
+
+    @Benchmark
+    public Object parseTextJoin() {
+        return textJoin.split("-");
+    }
+
+    @Benchmark
+    public Object parseTextLeave() {
+        return textLeave.split("-");
+    }
+
+    @Benchmark
+    public Object decodeBinaryJoin() {
+        return codec.decode(binaryJoin, envelope);
+    }
+
+    @Benchmark
+    public Object decodeBinaryLeave() {
+        return codec.decode(binaryLeave, envelope);
+    }
+}
@@ -0,0 +1,65 @@
+package com.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Measures the join-time history replay: building the reply, converting it to the SDTStream the JCSMP transport
+// sends, and a full join request/reply round trip through the in-process broker
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryReplayBenchmark {
+
+    private static final String ROOM = "chat/rooms/benchmark";
+
+    // Number of lines stored in the room before replaying
+    @Param({"5", "20", "1000"})
+    public int historyLines;
+
+    private InMemoryBroker broker;
+    private Listener listener;
+    private Transport client;
+    private Message join;
+
+    @Setup
+    public void setUp() throws TransportException {
+        broker = new InMemoryBroker(2);
+        MessageHistory history = new MessageHistory(Math.max(historyLines, MessageHistory.DEFAULT_CAPACITY));
+        for (int i = 0; i < historyLines; i++) {
+            history.append(ROOM, "user" + (i % 7) + ": message number " + i);
+        }
+
+        listener = new Listener(broker.newTransport(), history, "");
+        listener.start();
+
+        client = broker.newTransport();
+        client.connect(message -> { });
+        join = Message.envelope(new Envelope().set(Envelope.JOIN, "benchmark", "bench", ""));
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        listener.close();
+        broker.shutdown();
+    }
+
+    @Benchmark
+    public Object buildReply() {
+        return listener.joinReply(ROOM);
+    }
+
+    @Benchmark
+    public Object buildSdtStreamReply() {
+        return JcsmpTransport.toJcsmp(listener.joinReply(ROOM));
+    }
+
+    @Benchmark
+    public Object joinRoundTrip() throws TransportException {
+        return client.request(Listener.HEARTBEAT_TOPIC, join, 1000);
+    }
+}
@@ -0,0 +1,58 @@
+package com.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Measures how many room messages per second the listener can store, spread over 1, 10 and 10k rooms, for binary
+// envelopes and for plain text lines
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ListenerIngestBenchmark {
+
+    @Param({"1", "10", "10000"})
+    public int rooms;
+
+    @Param({"binary", "text"})
+    public String format;
+
+    private InMemoryBroker broker;
+    private Listener listener;
+    private Message[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() throws TransportException {
+        broker = new InMemoryBroker(1);
+        listener = new Listener(broker.newTransport(), new MessageHistory(MessageHistory.DEFAULT_CAPACITY), "");
+        listener.start();
+
+        // Pre-build one delivered message per room so only the listener's work is measured
+        messages = new Message[rooms];
+        Envelope envelope = new Envelope();
+        for (int i = 0; i < rooms; i++) {
+            Message message = format.equals("binary")
+                    ? Message.envelope(envelope.set(Envelope.CHAT, "room" + i, "user" + i, "hello there"))
+                    : Message.text("user" + i + ": hello there");
+            messages[i] = message.delivered("chat/rooms/room" + i, null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        listener.close();
+        broker.shutdown();
+    }
+
+    @Benchmark
+    public void append() {
+        listener.ingest(messages[next]);
+        if (++next == messages.length) {
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.chat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compares publishing chat messages one by one with publishing them through a BatchingPublisher. Each operation
+// publishes a burst of messages to a room and waits until the subscriber has received all of them, so the score is
+// end-to-end messages per second through the in-process broker.
+//
+// This measures the batching publisher against the InMemoryBroker stand-in. Most of the gain for larger batches comes
+// from the stand-in routing a whole batch in a single dispatcher task, which says little about a real broker: neither
+// JCSMP sendMultiple nor JcsmpTransport's message pool is exercised here.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PublishBenchmark {
+
+    private static final String ROOM = "chat/rooms/benchmark";
+    private static final int BURST = 1000;
+
+    // Messages per batch, 1 publishes every message on its own
+    @Param({"1", "16", "50"})
+    public int batch;
+
+    private InMemoryBroker broker;
+    private Transport publisherTransport;
+    private Transport subscriber;
+    private BatchingPublisher publisher;
+    private Message message;
+
+    private final AtomicLong received = new AtomicLong();
+    private long sent;
+
+    @Setup
+    public void setUp() throws TransportException {
+        broker = new InMemoryBroker(2);
+
+        subscriber = broker.newTransport();
+        subscriber.connect(m -> received.incrementAndGet());
+        subscriber.subscribe(ROOM);
+
+        publisherTransport = broker.newTransport();
+        publisherTransport.connect(m -> { });
+        publisher = new BatchingPublisher(publisherTransport, batch, 1);
+        message = Message.envelope(new Envelope().set(Envelope.CHAT, "benchmark", "bench",
+                "The quick brown fox jumps over the lazy dog"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+        publisherTransport.close();
+        subscriber.close();
+        broker.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void publishBurst() throws TransportException {
+        for (int i = 0; i < BURST; i++) {
+            publisher.publish(ROOM, message);
+        }
+        publisher.flush();
+
+        sent += BURST;
+        while (received.get() < sent) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.chat;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Collects outbound messages and hands them to the transport in batches, so a busy client makes one publishBatch call
+// (a single JCSMP sendMultiple) per batch instead of one send per message. A batch is sent as soon as it holds
+// maxBatch messages or its oldest message has waited maxLatencyMillis, whichever comes first. With a max latency of 0
+// every message is published immediately. Messages are published in the order publish was called.
+class BatchingPublisher implements AutoCloseable {
+
+    static final int DEFAULT_MAX_BATCH = 32;
+
+    private final Transport transport;
+    private final int maxBatch;
+    private final long maxLatencyMillis;
+
+    // Sends batches that did not fill up in time, null when batching is off
+    private final ScheduledExecutorService flusher;
+    private final boolean ownsFlusher;
+
+    // Batch being filled, guarded by this
+    private String[] topics;
+    private Message[] messages;
+    private int count;
+    private boolean flushScheduled;
+    private boolean closed;
+
+    // Batch being sent, guarded by sendLock which also keeps batches in order
+    private final Object sendLock = new Object();
+    private String[] sendingTopics;
+    private Message[] sendingMessages;
+
+    BatchingPublisher(Transport transport, int maxBatch, long maxLatencyMillis) {
+        this(transport, maxBatch, maxLatencyMillis, maxLatencyMillis > 0 && maxBatch > 1
+                ? Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("batching-publisher"))
+                : null, true);
+    }
+
+    // Shares a flusher between many publishers, e.g. one per simulated user. The flusher is not shut down on close.
+    BatchingPublisher(Transport transport, int maxBatch, long maxLatencyMillis, ScheduledExecutorService flusher) {
+        this(transport, maxBatch, maxLatencyMillis, maxLatencyMillis > 0 && maxBatch > 1 ? flusher : null, false);
+    }
+
+    private BatchingPublisher(Transport transport, int maxBatch, long maxLatencyMillis,
+                              ScheduledExecutorService flusher, boolean ownsFlusher) {
+        this.transport = transport;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.flusher = flusher;
+        this.ownsFlusher = ownsFlusher;
+
+        if (flusher != null) {
+            topics = new String[this.maxBatch];
+            messages = new Message[this.maxBatch];
+            sendingTopics = new String[this.maxBatch];
+            sendingMessages = new Message[this.maxBatch];
+        }
+    }
+
+    void publish(String topic, Message message) throws TransportException {
+        if (flusher == null) {
+            transport.publish(topic, message);
+            return;
+        }
+
+        boolean full;
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    throw new TransportException("Publisher is closed");
+                }
+                if (count < maxBatch) {
+                    topics[count] = topic;
+                    messages[count] = message;
+                    count++;
+                    full = count == maxBatch;
+                    if (!full && !flushScheduled) {
+                        flushScheduled = true;
+                        flusher.schedule(this::scheduledFlush, maxLatencyMillis, TimeUnit.MILLISECONDS);
+                    }
+                    break;
+                }
+            }
+
+            // Another thread filled the batch but has not sent it yet
+            flush();
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    // Sends whatever has been collected so far
+    void flush() throws TransportException {
+        if (flusher == null) {
+            return;
+        }
+
+        synchronized (sendLock) {
+            int n;
+            synchronized (this) {
+                n = count;
+                if (n == 0) {
+                    return;
+                }
+
+                String[] filledTopics = topics;
+                Message[] filledMessages = messages;
+                topics = sendingTopics;
+                messages = sendingMessages;
+                sendingTopics = filledTopics;
+                sendingMessages = filledMessages;
+                count = 0;
+                flushScheduled = false;
+            }
+
+            try {
+                transport.publishBatch(sendingTopics, sendingMessages, n);
+            } finally {
+                Arrays.fill(sendingTopics, 0, n, null);
+                Arrays.fill(sendingMessages, 0, n, null);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        try {
+            flush();
+        } catch (TransportException e) {
+            e.printStackTrace();
+        }
+        if (ownsFlusher && flusher != null) {
+            flusher.shutdownNow();
+        }
+    }
+
+    private void scheduledFlush() {
+        try {
+            flush();
+        } catch (TransportException e) {
+            e.printStackTrace();
+        }
+    }
+}
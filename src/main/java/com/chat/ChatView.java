@@ -0,0 +1,166 @@
+package com.chat;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Terminal view of the room the client is in. Keeps a bounded scrollback of chat lines and renders incrementally:
+// lines arriving between two frames are appended to the terminal in a single write, and the screen is only cleared
+// and fully redrawn when the whole history changes (joining a room, loading older history).
+//
+// All state is guarded by the view's monitor, so lines can be added from the transport's dispatcher thread while the
+// console thread joins, leaves or pages through history. A frame is built under the monitor but written to the
+// terminal after releasing it, so a slow terminal never blocks the dispatcher adding lines.
+class ChatView {
+
+    static final int DEFAULT_SCROLLBACK = 500;
+    static final long DEFAULT_FRAME_MILLIS = 50;
+
+    private final int scrollback;
+    private final long frameMillis;
+    private final PrintStream out;
+
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+
+    // Lines received since the last frame that still have to be appended to the terminal
+    private final List<String> pending = new ArrayList<>();
+    private boolean repaint;
+
+    // Lines are only collected while the user is in a room
+    private boolean active;
+
+    // Optional line shown above the history on a full redraw
+    private String banner;
+
+    private ScheduledExecutorService renderer;
+
+    // Held while a frame is built and written, so frames reach the terminal in the order they were built
+    private final Object frameLock = new Object();
+
+    ChatView(int scrollback, long frameMillis, PrintStream out) {
+        if (scrollback <= 0 || frameMillis <= 0) {
+            throw new IllegalArgumentException("Scrollback and frame interval must be positive");
+        }
+        this.scrollback = scrollback;
+        this.frameMillis = frameMillis;
+        this.out = out;
+    }
+
+    // Starts rendering a frame every frame interval
+    synchronized void start() {
+        if (renderer != null) {
+            return;
+        }
+        renderer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("chat-view"));
+        renderer.scheduleWithFixedDelay(this::render, frameMillis, frameMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (renderer != null) {
+            renderer.shutdown();
+            renderer = null;
+        }
+    }
+
+    // Starts a fresh view for a room, the screen is redrawn on the next frame
+    synchronized void enter() {
+        lines.clear();
+        pending.clear();
+        banner = null;
+        active = true;
+        repaint = true;
+    }
+
+    // Stops collecting lines and drops the scrollback
+    synchronized void leave() {
+        lines.clear();
+        pending.clear();
+        banner = null;
+        active = false;
+        repaint = false;
+    }
+
+    // Adds a newly received line, dropping the oldest one if the scrollback is full
+    synchronized void append(String line) {
+        if (!active) {
+            return;
+        }
+        lines.addLast(line);
+        trim();
+
+        // A burst larger than the screen is cheaper to redraw than to append line by line
+        if (!repaint) {
+            pending.add(line);
+            if (pending.size() > scrollback) {
+                requestRepaint();
+            }
+        }
+    }
+
+    // Adds older lines in front of the scrollback, oldest first, and redraws. Lines that do not fit are dropped.
+    synchronized void prepend(List<String> older) {
+        if (!active) {
+            return;
+        }
+        for (int i = older.size() - 1; i >= 0 && lines.size() < scrollback; i--) {
+            lines.addFirst(older.get(i));
+        }
+        requestRepaint();
+    }
+
+    synchronized void setBanner(String banner) {
+        this.banner = banner;
+        requestRepaint();
+    }
+
+    synchronized void requestRepaint() {
+        repaint = true;
+        pending.clear();
+    }
+
+    // Renders one frame: a full redraw if requested, otherwise the pending lines
+    void render() {
+        synchronized (frameLock) {
+            StringBuilder frame = nextFrame();
+            if (frame != null) {
+                out.print(frame);
+                out.flush();
+            }
+        }
+    }
+
+    // Takes the content of the next frame, or null if nothing changed
+    private synchronized StringBuilder nextFrame() {
+        if (!repaint && pending.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder frame = new StringBuilder();
+        if (repaint) {
+            frame.append("\033[H\033[2J");
+            if (banner != null) {
+                frame.append(banner).append('\n');
+            }
+            for (String line : lines) {
+                frame.append(line).append('\n');
+            }
+        } else {
+            for (String line : pending) {
+                frame.append(line).append('\n');
+            }
+        }
+        repaint = false;
+        pending.clear();
+        return frame;
+    }
+
+    private void trim() {
+        while (lines.size() > scrollback) {
+            lines.removeFirst();
+        }
+    }
+}
@@ -3,19 +3,45 @@ package com.chat;
 import com.solacesystems.jcsmp.*;
 
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Client {
 
-    // Stores our message history
-    private static ArrayList<String> messageBuffer = new ArrayList<>();
+    // Bounded scrollback of the current room, rendered incrementally. The size and frame interval can be tuned with
+    // -Dchat.scrollback=<lines> and -Dchat.frame.millis=<milliseconds>.
+    private static final ChatView view = new ChatView(
+            Integer.getInteger("chat.scrollback", ChatView.DEFAULT_SCROLLBACK),
+            Long.getLong("chat.frame.millis", ChatView.DEFAULT_FRAME_MILLIS), System.out);
 
-    // Stores the thread-safe instance of our message history list
-    private static List<String> safeMessageBuffer = Collections.synchronizedList(messageBuffer);
+    // Cursor for requesting older history of the current room from the listener, 0 if there is none
+    private static long historyCursor;
+
+    // Number of members of the current room as last announced by the listener, -1 until the first announcement
+    private static volatile int memberCount = -1;
+
+    // Keeps us in the presence of the room we are in, see PresenceTable
+    private static final ScheduledExecutorService pinger =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("client-ping"));
+    private static ScheduledFuture<?> ping;
+
+    // Attempts at a request the listener is too busy for, and the pause before the first retry
+    private static final int MAX_RETRIES = 3;
+    private static final int RETRY_BACKOFF_MILLIS = 250;
 
     // Client console application for chat program
-    public static void main(String[] args) throws JCSMPException {
+    public static void main(String[] args) throws TransportException {
+        // Headless mode, simulates many users instead of reading from the console
+        if (args.length > 0 && args[0].equals("--load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         // Check command line arguments
         if (args.length != 3 || args[1].split("@").length != 2) {
             System.out.println("Usage: TopicSubscriber <host:port> <client-username@message-vpn> <client-password>");
@@ -40,61 +66,52 @@ public class Client {
         properties.setProperty(JCSMPProperties.USERNAME, args[1].split("@")[0]); // client-username
         properties.setProperty(JCSMPProperties.PASSWORD, args[2]); // client-password
         properties.setProperty(JCSMPProperties.VPN_NAME,  args[1].split("@")[1]); // message-vpn
-        final Topic lobbyTopic = JCSMPFactory.onlyInstance().createTopic("chat/lobby");
-        final Topic requestTopic = JCSMPFactory.onlyInstance().createTopic("chat/heartbeat");
-        final JCSMPSession session = JCSMPFactory.onlyInstance().createSession(properties);
-        session.connect();
-
-        // Producer
-        XMLMessageProducer producer = session.getMessageProducer(new JCSMPStreamingPublishEventHandler() {
-            @Override
-            public void handleError(String s, JCSMPException e, long l) {
-                System.out.println("Producer received error for msg: %s@%s - %s%n");
-            }
-
-            @Override
-            public void responseReceived(String s) {
-                System.out.println("Producer received response for msg: " + s);
-            }
-        });
-
-        // Initialize consumer for receiving messages
-        XMLMessageConsumer consumer = session.getMessageConsumer(new XMLMessageListener() {
-            @Override
-            public void onReceive(BytesXMLMessage msg) {
-                if (msg instanceof TextMessage) {
-                    // Regular chat
-                    printChat();
-                    messageBuffer.add(((TextMessage) msg).getText());
-                    System.out.println(((TextMessage) msg).getText());
+        final Transport transport = new JcsmpTransport(properties);
+
+        // Connect and start receiving messages
+        transport.connect(msg -> {
+            // Regular chat, either an encoded envelope or a plain text line
+            String line = null;
+            if (msg.isBytes()) {
+                try {
+                    // Presence announcements only update the member count
+                    if (EnvelopeCodec.type(msg.getBytes()) == Envelope.PRESENCE) {
+                        memberCount = EnvelopeCodec.local().decode(msg.getBytes(), new Envelope()).count;
+                        return;
+                    }
+                    line = EnvelopeCodec.local().decodeLine(msg.getBytes());
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Malformed message received.");
                 }
+            } else if (msg.isText()) {
+                line = msg.getText();
             }
 
-            @Override
-            public void onException(JCSMPException e) {
-                System.out.printf("Consumer received exception: %s%n", e);
+            if (line != null) {
+                view.append(line);
             }
         });
-        consumer.start();
+        view.start();
+
+        // Outbound chat can be batched for bots and busy rooms. -Dchat.publish.latency=<milliseconds> is how long a
+        // message may wait for others (0, the default, sends right away), -Dchat.publish.batch=<messages> caps a batch.
+        final BatchingPublisher publisher = new BatchingPublisher(transport,
+                Integer.getInteger("chat.publish.batch", BatchingPublisher.DEFAULT_MAX_BATCH),
+                Long.getLong("chat.publish.latency", 0));
 
         cls();
         try {
             System.out.println("Awaiting response from Listener...");
 
-            // Initialize requester for retrieving a welcome message from a Listener connected to the broker
-            Requestor requestor = session.createRequestor();
-            TextMessage greet = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
-            greet.setText("greet");
+            // Request a welcome message from a Listener connected to the broker, reply timeout for 2000ms
+            Message reply = transport.request(Listener.LOBBY_TOPIC, Message.text("greet"), 2000);
 
-            // Reply timeout for 2000ms
-            BytesXMLMessage reply = requestor.request(greet, 2000, lobbyTopic);
-
-            if (reply instanceof TextMessage) {
-                    System.out.printf("Listener callback greeting:\n%s\n", ((TextMessage) reply).getText());
+            if (reply.isText()) {
+                    System.out.printf("Listener callback greeting:\n%s\n", reply.getText());
             } else {
                 System.out.println("Listener returned unexpected message type.");
             }
-        } catch (JCSMPRequestTimeoutException e) {
+        } catch (TransportTimeoutException e) {
             System.out.println("Reply timeout, Listener did not respond in time or does not exist.");
         }
 
@@ -104,16 +121,19 @@ public class Client {
         Scanner in = new Scanner(System.in);
         in.nextLine();
 
-        Topic room = null;
+        String room = null;
+        String roomname = null;
         String username = "noname";
+
+        // Our presence is kept by this id, so other clients with the same name are not mistaken for us
+        final String clientId = UUID.randomUUID().toString();
+
+        // Reused for every message we send
+        Envelope outgoing = new Envelope();
         while(state != -1) {
 
-            // Used to flush the list that stores the message history in a thread-safe manner
-            Iterator<String> iter = safeMessageBuffer.iterator();
-            while (iter.hasNext()) {
-                iter.next();
-                iter.remove();
-            }
+            // Drop the history of the room we left
+            view.leave();
 
             // State 0 is for the main menu
             while (state == 0) {
@@ -126,49 +146,55 @@ public class Client {
                         System.out.print("If the room does not exist, it will be created. If the room already exists," +
                                 " the application will attempt to retrieve the message history of this room.\nEnter room name: ");
 
-                        String roomname;
                         while((roomname = in.nextLine()).contains("/")) {
                             System.out.print("Do not start the room with \"/\".\nEnter room name: ");
                         }
 
-                        room = JCSMPFactory.onlyInstance().createTopic("chat/rooms/" + roomname);
-                        TextMessage joinMsg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+                        room = Listener.ROOM_PREFIX + roomname;
 
                         // Send a request to the listener to see if the room was already made. If it exists, the
-                        // listener will send a stream of strings (at most 20) of the last chat history
+                        // listener will send a page (at most 20 lines) of the last chat history
+                        historyCursor = 0;
+                        view.enter();
                         try {
-                            joinMsg.setText(username + "-join-" + roomname);
-                            BytesXMLMessage reply = session.createRequestor().request(joinMsg, 2000, requestTopic);
-
-                            // StreamMessage means there was message history, otherwise it is chat messages
-                            if (reply instanceof StreamMessage) {
-                                SDTStream stream = ((StreamMessage) reply).getStream();
-
-                                // Consume the stream until it is complete
-                                while (stream.hasRemaining()) {
-                                    try {
-                                        messageBuffer.add(stream.readString());
-                                    } catch (SDTException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            } else if (reply instanceof TextMessage) {
+                            outgoing.set(Envelope.JOIN, roomname, username, "").from(clientId);
+                            Message reply = requestListener(transport, Listener.HEARTBEAT_TOPIC,
+                                    Message.envelope(outgoing));
+
+                            // A stream means there was message history, otherwise it is chat messages
+                            if (reply.isStream()) {
+                                addHistoryPage(reply.getStream());
+                            } else if (reply.isText()) {
                                 // If the room does not exist, we will get the literal string "ACK" from the listener.
                                 // Any other response would mean the message was damaged on transport
-                                if (!((TextMessage) reply).getText().equals("ACK")) {
+                                if (reply.getText().equals(Listener.RETRY)) {
+                                    System.out.println("The listener is busy, history is not available.");
+                                } else if (!reply.getText().equals("ACK")) {
                                     System.out.println("Malformed response from the listener.");
                                 }
                             }
-                        } catch (JCSMPRequestTimeoutException ignored) {
+                        } catch (TransportTimeoutException ignored) {
                             // No need to halt the program, the listener is just missing.
                             System.out.println("No response received from listener.");
                         }
 
                         // Subscribe to the room we joined and announce our presence
-                        session.addSubscription(room);
-                        joinMsg.reset();
-                        joinMsg.setText(username + " has joined the room.");
-                        producer.send(joinMsg, room);
+                        transport.subscribe(room);
+                        transport.subscribe(Listener.PRESENCE_PREFIX + roomname);
+                        memberCount = -1;
+                        publisher.publish(room, Message.envelope(
+                                outgoing.set(Envelope.NOTICE, roomname, username, username + " has joined the room.")));
+
+                        // Ping while we stay so the listener does not expire us
+                        final Message pingMessage = Message.envelope(new Envelope().set(Envelope.PING, roomname,
+                                username, "").from(clientId));
+                        ping = pinger.scheduleAtFixedRate(() -> {
+                            try {
+                                publisher.publish(Listener.HEARTBEAT_TOPIC, pingMessage);
+                            } catch (TransportException e) {
+                                e.printStackTrace();
+                            }
+                        }, PresenceTable.PING_INTERVAL_SECONDS, PresenceTable.PING_INTERVAL_SECONDS, TimeUnit.SECONDS);
                         state = 1;
                         break;
                     case 2:
@@ -189,50 +215,142 @@ public class Client {
                 String message = in.nextLine();
 
                 if (message.startsWith("/help")) {
-                    System.out.println("Help:\n/leave - Leave the chat\n/room - The name of the room");
+                    System.out.println("Help:\n/leave - Leave the chat\n/room - The name of the room\n" +
+                            "/more - Load older messages\n/search <words> - Find messages containing the words\n" +
+                            "/who - Who is in the room");
                 } else if (message.startsWith("/leave")) {
                     System.out.println("Disconnecting...");
 
-                    // Set up leave message for the listener
-                    TextMessage leave = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
-                    leave.setText(username + "-leave-" + room);
-                    producer.send(leave, requestTopic);
+                    // Stop pinging and set up leave message for the listener
+                    ping.cancel(false);
+                    publisher.publish(Listener.HEARTBEAT_TOPIC,
+                            Message.envelope(outgoing.set(Envelope.LEAVE, roomname, username, "").from(clientId)));
 
                     // Unsubscribe from the room and report our departure
-                    session.removeSubscription(room);
-                    leave.reset();
-                    leave.setText(username + " has left the room.");
-                    producer.send(leave, room);
+                    transport.unsubscribe(room);
+                    transport.unsubscribe(Listener.PRESENCE_PREFIX + roomname);
+                    publisher.publish(room, Message.envelope(
+                            outgoing.set(Envelope.NOTICE, roomname, username, username + " has left the room.")));
                     state = 0;
+                } else if (message.startsWith("/more")) {
+                    // Ask the listener for the page of history preceding the oldest line we have
+                    if (historyCursor == 0) {
+                        System.out.println("No older messages.");
+                        continue;
+                    }
+                    try {
+                        outgoing.set(Envelope.HISTORY, roomname, username, "");
+                        outgoing.cursor = historyCursor;
+                        outgoing.count = Listener.JOIN_HISTORY_LINES;
+                        Message reply = requestListener(transport, Listener.HEARTBEAT_TOPIC,
+                                Message.envelope(outgoing));
+                        if (reply.isStream()) {
+                            addHistoryPage(reply.getStream());
+                        } else if (isRetry(reply)) {
+                            System.out.println("The listener is busy, try again later.");
+                        } else {
+                            System.out.println("Malformed response from the listener.");
+                        }
+                    } catch (TransportTimeoutException e) {
+                        System.out.println("No response received from listener.");
+                    }
+                } else if (message.startsWith("/search")) {
+                    // Ask the listener for the newest messages of the room containing every word
+                    String query = message.substring("/search".length()).trim();
+                    if (query.isEmpty()) {
+                        System.out.println("Usage: /search <words>");
+                        continue;
+                    }
+                    try {
+                        outgoing.set(Envelope.SEARCH, roomname, username, query);
+                        outgoing.count = Listener.JOIN_HISTORY_LINES;
+                        Message reply = requestListener(transport, Listener.SEARCH_TOPIC, Message.envelope(outgoing));
+                        if (isRetry(reply)) {
+                            System.out.println("The listener is busy, try again later.");
+                        } else if (!reply.isStream()) {
+                            System.out.println("Malformed response from the listener.");
+                        } else if (reply.getStream().isEmpty()) {
+                            System.out.println("No messages found.");
+                        } else {
+                            System.out.println("-- Messages matching \"" + query + "\" --");
+                            for (String line : reply.getStream()) {
+                                System.out.println(line);
+                            }
+                            System.out.println("--");
+                        }
+                    } catch (TransportTimeoutException e) {
+                        System.out.println("No response received from listener.");
+                    }
+                } else if (message.startsWith("/who")) {
+                    // Ask the listener who is in the room
+                    try {
+                        Message reply = requestListener(transport, Listener.HEARTBEAT_TOPIC,
+                                Message.envelope(outgoing.set(Envelope.WHO, roomname, username, "")));
+                        if (reply.isStream()) {
+                            System.out.println(reply.getStream().size() + " in the room: "
+                                    + String.join(", ", reply.getStream()));
+                        } else if (isRetry(reply)) {
+                            System.out.println("The listener is busy, try again later.");
+                        } else {
+                            System.out.println("Malformed response from the listener.");
+                        }
+                    } catch (TransportTimeoutException e) {
+                        System.out.println("No response received from listener.");
+                    }
                 } else if (message.startsWith("/room")) {
                     // Returns the name of the room to the user. This message is not sent to the broker.
-                    Matcher m = (Pattern.compile("([^/]+$)")).matcher(room.getName());
+                    Matcher m = (Pattern.compile("([^/]+$)")).matcher(room);
                     if (m.find()) {
-                        System.out.println("Room Name: " + m.group(1));
+                        int members = memberCount;
+                        System.out.println("Room Name: " + m.group(1)
+                                + (members >= 0 ? " (" + members + " online)" : ""));
                     }
                 } else {
-                    // If the client input is not a command, it is a message. The format for the message is
-                    // Username: <message>
-                    TextMessage reply = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
-                    reply.setText(username + ": " + message);
-                    producer.send(reply, room);
+                    // If the client input is not a command, it is a chat message, shown as Username: <message>
+                    publisher.publish(room, Message.envelope(outgoing.set(Envelope.CHAT, roomname, username, message)));
                 }
             }
         }
 
         // Close services and exit the program
         System.out.println("Exiting...");
-        consumer.close();
-        producer.close();
-        session.closeSession();
+        view.stop();
+        pinger.shutdownNow();
+        publisher.close();
+        transport.close();
     }
 
-    // Thread-safe function for printing the message history to the console
-    private static synchronized void printChat() {
-        cls();
-        for (String aHistory : messageBuffer) {
-            System.out.println(aHistory);
+    // Sends a request to the listener and waits up to 2000ms for the reply. An overloaded listener replies RETRY, the
+    // request is then sent again a few times after a growing, randomized pause. The last reply is returned either way.
+    private static Message requestListener(Transport transport, String topic, Message request)
+            throws TransportException {
+        for (int attempt = 1; ; attempt++) {
+            Message reply = transport.request(topic, request, 2000);
+            if (!isRetry(reply) || attempt == MAX_RETRIES) {
+                return reply;
+            }
+            try {
+                Thread.sleep(RETRY_BACKOFF_MILLIS * attempt
+                        + ThreadLocalRandom.current().nextInt(RETRY_BACKOFF_MILLIS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return reply;
+            }
+        }
+    }
+
+    private static boolean isRetry(Message reply) {
+        return reply.isText() && reply.getText().equals(Listener.RETRY);
+    }
+
+    // Prepends a page of history from the listener. The first string of the page is the cursor for the next page.
+    private static void addHistoryPage(List<String> page) {
+        if (page.isEmpty()) {
+            return;
         }
+        historyCursor = Long.parseLong(page.get(0));
+        view.setBanner(historyCursor != 0 ? "-- Older messages available. Type /more to load them. --" : null);
+        view.prepend(page.subList(1, page.size()));
     }
 
     // Clears the screen
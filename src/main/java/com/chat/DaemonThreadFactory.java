@@ -0,0 +1,20 @@
+package com.chat;
+
+import java.util.concurrent.ThreadFactory;
+
+// Names the threads of an executor and makes them daemons, so background work never keeps the JVM alive
+final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+
+    DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
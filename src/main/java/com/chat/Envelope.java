@@ -0,0 +1,70 @@
+package com.chat;
+
+// Decoded form of the binary messages exchanged by clients and the listener. Instances are mutable so a decoder can
+// reuse one envelope for every message it reads, see EnvelopeCodec for the wire format.
+final class Envelope {
+
+    // Chat line typed by a user, rendered as "<sender>: <body>"
+    static final byte CHAT = 1;
+
+    // Room announcement such as "<user> has joined the room.", rendered as the body alone
+    static final byte NOTICE = 2;
+
+    // Request on chat/heartbeat to join a room, answered with the newest history page or "ACK"
+    static final byte JOIN = 3;
+
+    // Published on chat/heartbeat when a user leaves a room
+    static final byte LEAVE = 4;
+
+    // Request on chat/heartbeat for the count lines older than cursor
+    static final byte HISTORY = 5;
+
+    // Request on chat/search for the count newest lines of a room containing every word of the body
+    static final byte SEARCH = 6;
+
+    // Published on chat/heartbeat by a user staying in a room, keeps the user in the room's presence
+    static final byte PING = 7;
+
+    // Request on chat/heartbeat for the members of a room, answered with a stream of names
+    static final byte WHO = 8;
+
+    // Published by the listener on chat/presence/<room>: count is the number of members, the body lists the members
+    // that joined ("+name") and left ("-name") since the previous update, one per line
+    static final byte PRESENCE = 9;
+
+    byte type;
+    long timestamp;
+    String room = "";
+    String sender = "";
+    String body = "";
+    long cursor;
+    int count;
+
+    // Id of the client that sent the envelope, unique per connection so users sharing a name are told apart. Empty
+    // when the sender did not set one.
+    String client = "";
+
+    // Resets every field and stamps the envelope with the current time
+    Envelope set(byte type, String room, String sender, String body) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+        this.room = room;
+        this.sender = sender;
+        this.body = body;
+        this.cursor = 0;
+        this.count = 0;
+        this.client = "";
+        return this;
+    }
+
+    // Stamps the envelope with the id of the sending client
+    Envelope from(String client) {
+        this.client = client;
+        return this;
+    }
+
+    // Line shown to users and stored in the room history
+    String render() {
+        return type == CHAT ? sender + ": " + body : body;
+    }
+}
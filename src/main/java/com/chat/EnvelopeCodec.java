@@ -0,0 +1,252 @@
+package com.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Encodes and decodes envelopes to a compact binary form:
+//
+//   [byte version][byte type][long timestamp][varint cursor][varint count][string room][string sender][string body]
+//   [string client]
+//
+// where strings are a varint byte length followed by UTF-8. The client id was added last, an envelope ending after the
+// body has an empty one. Encoding writes UTF-8 straight into a scratch buffer that is reused across calls and decoding
+// a chat line for the history assembles its UTF-8 in a scratch buffer as well, so the only allocations are the encoded
+// array and the decoded Strings. A codec is not thread-safe, use local() to get the instance owned by the current
+// thread.
+final class EnvelopeCodec {
+
+    static final byte VERSION = 1;
+
+    private static final ThreadLocal<EnvelopeCodec> LOCAL = ThreadLocal.withInitial(EnvelopeCodec::new);
+
+    private byte[] out = new byte[256];
+    private int outPosition;
+
+    private char[] chars = new char[128];
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    private byte[] in;
+    private int inPosition;
+
+    static EnvelopeCodec local() {
+        return LOCAL.get();
+    }
+
+    byte[] encode(Envelope envelope) {
+        outPosition = 0;
+        ensureOut(2 + 8);
+        out[outPosition++] = VERSION;
+        out[outPosition++] = envelope.type;
+        writeLong(envelope.timestamp);
+        writeVarint(envelope.cursor);
+        writeVarint(envelope.count);
+        writeString(envelope.room);
+        writeString(envelope.sender);
+        writeString(envelope.body);
+        writeString(envelope.client);
+        return Arrays.copyOf(out, outPosition);
+    }
+
+    // Decodes every field into the given envelope
+    Envelope decode(byte[] data, Envelope into) {
+        readHeader(data);
+        into.type = data[1];
+        into.timestamp = readLong();
+        into.cursor = readVarint();
+        into.count = (int) readVarint();
+        into.room = readString();
+        into.sender = readString();
+        into.body = readString();
+        into.client = inPosition < in.length ? readString() : "";
+        return into;
+    }
+
+    // Returns the type of an encoded envelope without decoding it
+    static byte type(byte[] data) {
+        if (data.length < 2 || data[0] != VERSION) {
+            throw new IllegalArgumentException("Unsupported envelope");
+        }
+        return data[1];
+    }
+
+    // Hot path for the listener: decodes a CHAT or NOTICE envelope straight into its rendered line, copying the UTF-8
+    // of the line into a scratch buffer so the only allocation is the returned String. Returns null for other types.
+    String decodeLine(byte[] data) {
+        readHeader(data);
+        byte type = data[1];
+        if (type != Envelope.CHAT && type != Envelope.NOTICE) {
+            return null;
+        }
+
+        inPosition += 8;
+        readVarint();
+        readVarint();
+        skipString();
+
+        lineLength = 0;
+        if (type == Envelope.CHAT) {
+            appendString();
+            appendByte((byte) ':');
+            appendByte((byte) ' ');
+        } else {
+            skipString();
+        }
+        appendString();
+        return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+    }
+
+    private void readHeader(byte[] data) {
+        type(data);
+        in = data;
+        inPosition = 2;
+    }
+
+    private void ensureOut(int extra) {
+        if (outPosition + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, outPosition + extra));
+        }
+    }
+
+    private void writeLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[outPosition++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeVarint(long value) {
+        ensureOut(Varint.MAX_BYTES);
+        outPosition = Varint.write(out, outPosition, value);
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            value = "";
+        }
+
+        // Copy the characters once, indexing a char array is much cheaper than String.charAt
+        int length = value.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(chars.length * 2, length)];
+        }
+        value.getChars(0, length, chars, 0);
+
+        // First pass computes the UTF-8 length for the prefix, second pass writes the bytes
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (isSurrogatePair(chars, i, length)) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+
+        writeVarint(bytes);
+        ensureOut(bytes);
+        byte[] out = this.out;
+        int position = outPosition;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (isSurrogatePair(chars, i, length)) {
+                int codePoint = Character.toCodePoint(c, chars[++i]);
+                out[position++] = (byte) (0xF0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Lone surrogates are replaced by a single '?', like String.getBytes does
+                out[position++] = (byte) '?';
+            } else {
+                out[position++] = (byte) (0xE0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        outPosition = position;
+    }
+
+    private static boolean isSurrogatePair(char[] chars, int index, int length) {
+        return Character.isHighSurrogate(chars[index]) && index + 1 < length
+                && Character.isLowSurrogate(chars[index + 1]);
+    }
+
+    private long readLong() {
+        checkRemaining(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (in[inPosition++] & 0xFF);
+        }
+        return value;
+    }
+
+    private long readVarint() {
+        int length = Varint.length(in, inPosition, in.length);
+        if (length < 0) {
+            throw new IllegalArgumentException("Malformed envelope");
+        }
+        long value = Varint.read(in, inPosition);
+        inPosition += length;
+        return value;
+    }
+
+    private String readString() {
+        int length = readLength();
+        inPosition += length;
+        return length == 0 ? "" : new String(in, inPosition - length, length, StandardCharsets.UTF_8);
+    }
+
+    private void skipString() {
+        int length = readLength();
+        inPosition += length;
+    }
+
+    // Copies the next UTF-8 string into the line buffer
+    private void appendString() {
+        int length = readLength();
+        ensureLine(length);
+        System.arraycopy(in, inPosition, line, lineLength, length);
+        inPosition += length;
+        lineLength += length;
+    }
+
+    private void appendByte(byte b) {
+        ensureLine(1);
+        line[lineLength++] = b;
+    }
+
+    private void ensureLine(int extra) {
+        if (lineLength + extra > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + extra));
+        }
+    }
+
+    // Reads a string length, which must fit in what is left of the input
+    private int readLength() {
+        long length = readVarint();
+        if (length < 0 || length > in.length - inPosition) {
+            throw new IllegalArgumentException("Malformed envelope");
+        }
+        return (int) length;
+    }
+
+    // Compares against what is left so a huge length cannot overflow
+    private void checkRemaining(int length) {
+        if (length < 0 || length > in.length - inPosition) {
+            throw new IllegalArgumentException("Malformed envelope");
+        }
+    }
+}
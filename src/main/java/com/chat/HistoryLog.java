@@ -0,0 +1,252 @@
+package com.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Durable, append-only log of room messages backed by memory-mapped files, so a restarted listener can serve the
+// history of every room again.
+//
+// Messages are appended to fixed-size segment files (segment-00000.log, segment-00001.log, ...). Every record links
+// back to the previous record of the same room, and a small memory-mapped index (rooms.idx) keeps the position of the
+// newest record and the message count of every room. Recovery therefore only reads the index and walks back from
+// each room's tail for as many records as the in-memory history keeps, no matter how many messages are stored.
+//
+// Segment record: [int text length + 1][long previous record of the room][int room id][UTF-8 text]
+// Index:          [long write position] followed by one entry per room: [short name length][UTF-8 name]
+//                 [long tail record][long message count], terminated by a zero name length
+//
+// Positions are (segment number << 32 | offset within the segment). Records are written before the index points at
+// them, so a crash can at worst lose the message that was being appended.
+//
+// There is no retention: segments are never deleted or compacted, so the log grows with every message even though
+// recovery only reads the newest lines of each room.
+class HistoryLog implements Closeable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int RECORD_HEADER = 16;
+    private static final int INDEX_GROWTH = 1024 * 1024;
+    private static final long NO_RECORD = -1L;
+
+    // Called once per room on recovery with the room's message count and its newest lines, oldest first
+    interface RoomVisitor {
+        void restore(String room, long total, List<String> lines);
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+
+    // Room id is the position of the room in the index
+    private final Map<String, Integer> roomIds = new HashMap<>();
+    private final List<String> roomNames = new ArrayList<>();
+    private long[] tails = new long[16];
+    private long[] counts = new long[16];
+    private int[] slots = new int[16];
+
+    private final FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int indexEnd;
+
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+
+    HistoryLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    HistoryLog(Path directory, int segmentSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        indexChannel = FileChannel.open(directory.resolve("rooms.idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(indexChannel.size(), INDEX_GROWTH));
+
+        // Load every room entry, the room id is the order of the entry
+        long writePosition = index.getLong(0);
+        int offset = 8;
+        int nameLength;
+        while (offset + 2 <= index.capacity() && (nameLength = index.getShort(offset)) > 0) {
+            byte[] name = new byte[nameLength];
+            index.position(offset + 2);
+            index.get(name);
+            int slot = offset + 2 + nameLength;
+            addRoom(new String(name, StandardCharsets.UTF_8), slot, index.getLong(slot), index.getLong(slot + 8));
+            offset = slot + 16;
+        }
+        indexEnd = offset;
+
+        // The index header is written last, so a room tail may point past it after a crash
+        for (int id = 0; id < roomNames.size(); id++) {
+            if (tails[id] != NO_RECORD && tails[id] >= writePosition) {
+                ByteBuffer tailSegment = readSegment(segmentOf(tails[id]), null);
+                writePosition = tails[id] + RECORD_HEADER + tailSegment.getInt(offsetOf(tails[id])) - 1;
+            }
+        }
+
+        openSegment(segmentOf(writePosition));
+        segment.position(offsetOf(writePosition));
+    }
+
+    // Appends a message to the room's log, registering the room if needed
+    synchronized void append(String room, String line) throws IOException {
+        int id = register(room);
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        if (RECORD_HEADER + text.length > segmentSize) {
+            throw new IOException("Message of " + text.length + " bytes does not fit in a log segment");
+        }
+        if (segment.remaining() < RECORD_HEADER + text.length) {
+            openSegment(segmentNumber + 1);
+        }
+
+        long position = position(segmentNumber, segment.position());
+        segment.putInt(text.length + 1);
+        segment.putLong(tails[id]);
+        segment.putInt(id);
+        segment.put(text);
+
+        tails[id] = position;
+        counts[id]++;
+        index.putLong(slots[id], position);
+        index.putLong(slots[id] + 8, counts[id]);
+        index.putLong(0, position(segmentNumber, segment.position()));
+    }
+
+    // Makes sure the room is known to the index, even if it does not have any message yet. Returns the room id.
+    synchronized int register(String room) throws IOException {
+        Integer id = roomIds.get(room);
+        if (id != null) {
+            return id;
+        }
+
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        if (name.length == 0 || name.length > Short.MAX_VALUE) {
+            throw new IOException("Invalid room name: " + room);
+        }
+
+        // Entry plus the zero terminator must fit, otherwise grow the index file
+        int entryLength = 2 + name.length + 16;
+        if (indexEnd + entryLength + 2 > index.capacity()) {
+            index.force();
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    index.capacity() + Math.max(INDEX_GROWTH, entryLength + 2));
+        }
+
+        // Write the entry before its name length so a torn entry reads as the terminator
+        int slot = indexEnd + 2 + name.length;
+        index.position(indexEnd + 2);
+        index.put(name);
+        index.putLong(slot, NO_RECORD);
+        index.putLong(slot + 8, 0);
+        index.putShort(slot + 16, (short) 0);
+        index.putShort(indexEnd, (short) name.length);
+        indexEnd = slot + 16;
+
+        return addRoom(room, slot, NO_RECORD, 0);
+    }
+
+    // Visits every room with at most maxLines of its newest lines
+    synchronized void replay(int maxLines, RoomVisitor visitor) throws IOException {
+        Map<Integer, ByteBuffer> segments = new HashMap<>();
+        for (int id = 0; id < roomNames.size(); id++) {
+            List<String> lines = new ArrayList<>(Math.min(maxLines, (int) Math.min(counts[id], Integer.MAX_VALUE)));
+
+            // Walk back from the tail, then restore chronological order
+            long position = tails[id];
+            while (position != NO_RECORD && lines.size() < maxLines) {
+                ByteBuffer buffer = readSegment(segmentOf(position), segments);
+                int offset = offsetOf(position);
+                byte[] text = new byte[buffer.getInt(offset) - 1];
+                buffer.position(offset + RECORD_HEADER);
+                buffer.get(text);
+                lines.add(new String(text, StandardCharsets.UTF_8));
+                position = buffer.getLong(offset + 4);
+            }
+            Collections.reverse(lines);
+            visitor.restore(roomNames.get(id), counts[id], lines);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segment.force();
+        index.force();
+        segmentChannel.close();
+        indexChannel.close();
+    }
+
+    private int addRoom(String room, int slot, long tail, long count) {
+        int id = roomNames.size();
+        if (id == tails.length) {
+            tails = Arrays.copyOf(tails, id * 2);
+            counts = Arrays.copyOf(counts, id * 2);
+            slots = Arrays.copyOf(slots, id * 2);
+        }
+        roomNames.add(room);
+        roomIds.put(room, id);
+        tails[id] = tail;
+        counts[id] = count;
+        slots[id] = slot;
+        return id;
+    }
+
+    private void openSegment(int number) throws IOException {
+        if (segmentChannel != null) {
+            segment.force();
+            segmentChannel.close();
+        }
+        segmentChannel = FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentNumber = number;
+    }
+
+    // Maps a segment read-only. The active segment is read through a view of its writable mapping so reads never
+    // move the write position.
+    private ByteBuffer readSegment(int number, Map<Integer, ByteBuffer> cache) throws IOException {
+        if (segmentChannel != null && number == segmentNumber) {
+            return segment.duplicate();
+        }
+
+        ByteBuffer buffer = cache != null ? cache.get(number) : null;
+        if (buffer == null) {
+            try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (cache != null) {
+                cache.put(number, buffer);
+            }
+        }
+        return buffer;
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("segment-%05d.log", number));
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+}
@@ -0,0 +1,242 @@
+package com.chat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Compact binary image of an in-memory MessageHistory, written periodically so a restarted listener without a
+// durable log gets its rooms back without replaying anything.
+//
+// Rooms are written in chunks of about CHUNK_BYTES. Chunks are independent of each other, so on startup they are
+// decoded in parallel, each worker reading its chunk with a positional read and registering its rooms directly.
+// Cold rooms are written as their deflated block and restored without inflating them, hot rooms as plain lines.
+//
+// File:  [int magic][int version][int capacity][long written millis] followed by chunks, terminated by an empty one
+// Chunk: [int room count][int byte length][int CRC-32 of the entries] followed by one entry per room:
+//        [string room][long total][byte HOT][int line count][string line]...
+//        [string room][long total][byte COLD][int line count][int raw length][int block length][deflated block]
+// Strings are a varint byte length followed by UTF-8, see Varint.
+//
+// A snapshot is written to a temporary file that atomically replaces the previous one, so a crash while writing
+// leaves the previous snapshot intact.
+final class HistorySnapshot {
+
+    private static final int MAGIC = 0x43484154;
+    private static final int VERSION = 1;
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    private static final int CHUNK_HEADER = 12;
+    private static final byte HOT = 0;
+    private static final byte COLD = 1;
+
+    private HistorySnapshot() {
+    }
+
+    // Writes every room of the history, returns the number of rooms written. Rooms keep accepting messages while
+    // the snapshot is written, each room is captured consistently on its own.
+    static int write(MessageHistory history, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int rooms = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                    64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(history.capacity());
+            out.writeLong(System.currentTimeMillis());
+
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_BYTES + 64 * 1024);
+            DataOutputStream entries = new DataOutputStream(chunk);
+            byte[] prefix = new byte[Varint.MAX_BYTES];
+            int chunkRooms = 0;
+            for (String room : history.roomNames()) {
+                RoomHistory roomHistory = history.get(room);
+                if (roomHistory == null) {
+                    continue;
+                }
+                RoomHistory.Snapshot snapshot = roomHistory.snapshot();
+                writeString(entries, prefix, room);
+                entries.writeLong(snapshot.total);
+                if (snapshot.cold != null) {
+                    entries.writeByte(COLD);
+                    entries.writeInt(snapshot.count);
+                    entries.writeInt(snapshot.coldLength);
+                    entries.writeInt(snapshot.cold.length);
+                    entries.write(snapshot.cold);
+                } else {
+                    entries.writeByte(HOT);
+                    entries.writeInt(snapshot.count);
+                    for (String line : snapshot.lines) {
+                        writeString(entries, prefix, line);
+                    }
+                }
+                rooms++;
+                chunkRooms++;
+
+                if (chunk.size() >= CHUNK_BYTES) {
+                    writeChunk(out, chunkRooms, chunk);
+                    chunkRooms = 0;
+                }
+            }
+            if (chunkRooms > 0) {
+                writeChunk(out, chunkRooms, chunk);
+            }
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return rooms;
+    }
+
+    // Restores every room of the snapshot into the history, decoding the chunks on the given number of threads.
+    // Returns the number of rooms restored. A missing file restores nothing, a damaged one throws an IOException.
+    static int read(Path file, MessageHistory history, int threads) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(20);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a history snapshot: " + file);
+            }
+
+            // Locate the chunks first, only their headers are read here
+            List<long[]> chunks = new ArrayList<>();
+            ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER);
+            long position = header.capacity();
+            while (true) {
+                chunkHeader.clear();
+                readFully(channel, chunkHeader, position);
+                int rooms = chunkHeader.getInt(0);
+                int length = chunkHeader.getInt(4);
+                if (rooms == 0 && length == 0) {
+                    break;
+                }
+                if (rooms < 0 || length < 0) {
+                    throw new IOException("Corrupt history snapshot " + file + " at " + position);
+                }
+                chunks.add(new long[]{position + CHUNK_HEADER, length, rooms, chunkHeader.getInt(8)});
+                position += CHUNK_HEADER + length;
+            }
+
+            ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks.size())),
+                    new DaemonThreadFactory("snapshot-decoder"));
+            try {
+                List<Future<Integer>> decoded = new ArrayList<>(chunks.size());
+                for (long[] chunk : chunks) {
+                    decoded.add(decoders.submit(() -> {
+                        ByteBuffer buffer = ByteBuffer.allocate((int) chunk[1]);
+                        readFully(channel, buffer, chunk[0]);
+                        CRC32 crc = new CRC32();
+                        crc.update(buffer.array(), 0, buffer.limit());
+                        if ((int) crc.getValue() != (int) chunk[3]) {
+                            throw new IOException("Corrupt history snapshot " + file + " at " + chunk[0]);
+                        }
+                        return decodeChunk(buffer, (int) chunk[2], history);
+                    }));
+                }
+
+                int rooms = 0;
+                for (Future<Integer> future : decoded) {
+                    rooms += future.get();
+                }
+                return rooms;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Corrupt history snapshot " + file, cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + file, e);
+            } finally {
+                decoders.shutdownNow();
+            }
+        }
+    }
+
+    private static int decodeChunk(ByteBuffer buffer, int rooms, MessageHistory history) throws IOException {
+        int capacity = history.capacity();
+        try {
+            for (int i = 0; i < rooms; i++) {
+                String room = Varint.readString(buffer);
+                long total = buffer.getLong();
+                byte type = buffer.get();
+                int lines = buffer.getInt();
+                if (type == COLD) {
+                    int rawLength = buffer.getInt();
+                    byte[] block = new byte[buffer.getInt()];
+                    buffer.get(block);
+                    if (lines <= capacity) {
+                        history.restore(room, new RoomHistory(capacity, total, lines, block, rawLength));
+                    } else {
+                        // The capacity shrank since the snapshot was written, rebuild the ring instead
+                        history.restore(room, new RoomHistory(capacity, total,
+                                RoomHistory.unpack(block, rawLength, lines)));
+                    }
+                } else {
+                    List<String> newest = new ArrayList<>(Math.min(lines, capacity));
+                    for (int l = 0; l < lines; l++) {
+                        newest.add(Varint.readString(buffer));
+                    }
+                    history.restore(room, new RoomHistory(capacity, total, newest));
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException
+                | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt history snapshot chunk", e);
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException("Corrupt history snapshot chunk, " + buffer.remaining() + " bytes left over");
+        }
+        return rooms;
+    }
+
+    private static void writeChunk(DataOutputStream out, int rooms, ByteArrayOutputStream chunk) throws IOException {
+        byte[] entries = chunk.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(entries, 0, entries.length);
+        out.writeInt(rooms);
+        out.writeInt(entries.length);
+        out.writeInt((int) crc.getValue());
+        out.write(entries);
+        chunk.reset();
+    }
+
+    // The prefix is scratch space for the length
+    private static void writeString(DataOutputStream out, byte[] prefix, String text) throws IOException {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        out.write(prefix, 0, Varint.write(prefix, 0, utf8.length));
+        out.write(utf8);
+    }
+
+    // FileChannel positional reads are safe from several threads at once
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("History snapshot ends early at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+}
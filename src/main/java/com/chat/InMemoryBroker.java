@@ -0,0 +1,269 @@
+package com.chat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-process stand-in for the Solace broker, used to load-test and benchmark the client and listener on a machine
+// without a broker. Topic matching follows the Solace rules used by the chat: levels are separated by "/", a level
+// ending in "*" matches any level with that prefix and a trailing ">" matches one or more remaining levels.
+//
+// Every transport created by the broker is pinned to one of a fixed number of dispatcher threads, so messages are
+// delivered to a given transport in publish order while different transports are served in parallel.
+class InMemoryBroker {
+
+    private final ExecutorService[] dispatchers;
+    private final AtomicInteger nextDispatcher = new AtomicInteger();
+
+    // Exact topic subscriptions are looked up directly, wildcard subscriptions are matched one by one
+    private final ConcurrentMap<String, Set<InMemoryTransport>> exact = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<InMemoryTransport>> wildcards = new ConcurrentHashMap<>();
+
+    InMemoryBroker() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    InMemoryBroker(int dispatcherThreads) {
+        dispatchers = new ExecutorService[Math.max(1, dispatcherThreads)];
+        for (int i = 0; i < dispatchers.length; i++) {
+            final int id = i;
+            dispatchers[i] = Executors.newSingleThreadExecutor(new DaemonThreadFactory("in-memory-dispatcher-" + id));
+        }
+    }
+
+    // Creates a new, not yet connected, client of this broker
+    Transport newTransport() {
+        return new InMemoryTransport(dispatchers[Math.floorMod(nextDispatcher.getAndIncrement(), dispatchers.length)]);
+    }
+
+    void shutdown() {
+        for (ExecutorService dispatcher : dispatchers) {
+            dispatcher.shutdownNow();
+        }
+    }
+
+    private void addSubscription(String topic, InMemoryTransport transport) {
+        ConcurrentMap<String, Set<InMemoryTransport>> table = isWildcard(topic) ? wildcards : exact;
+        table.computeIfAbsent(topic, t -> new CopyOnWriteArraySet<>()).add(transport);
+    }
+
+    private void removeSubscription(String topic, InMemoryTransport transport) {
+        ConcurrentMap<String, Set<InMemoryTransport>> table = isWildcard(topic) ? wildcards : exact;
+        Set<InMemoryTransport> subscribers = table.get(topic);
+        if (subscribers != null) {
+            subscribers.remove(transport);
+        }
+    }
+
+    // Delivers a message once to every transport with at least one matching subscription
+    private void route(String topic, Message message) {
+        for (InMemoryTransport transport : targets(topic)) {
+            transport.deliver(message);
+        }
+    }
+
+    // Delivers a batch with one dispatcher task per receiving transport instead of one per message and transport
+    private void route(String[] topics, Message[] messages, int count) {
+        Map<InMemoryTransport, List<Message>> batches = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Message delivered = messages[i].delivered(topics[i], null);
+            for (InMemoryTransport transport : targets(topics[i])) {
+                batches.computeIfAbsent(transport, t -> new ArrayList<>()).add(delivered);
+            }
+        }
+
+        for (Map.Entry<InMemoryTransport, List<Message>> batch : batches.entrySet()) {
+            batch.getKey().deliver(batch.getValue());
+        }
+    }
+
+    // Every transport with at least one subscription matching the topic
+    private Set<InMemoryTransport> targets(String topic) {
+        Set<InMemoryTransport> exactSubscribers = exact.get(topic);
+        Set<InMemoryTransport> targets = null;
+
+        for (Map.Entry<String, Set<InMemoryTransport>> entry : wildcards.entrySet()) {
+            if (!entry.getValue().isEmpty() && matches(entry.getKey(), topic)) {
+                if (targets == null) {
+                    targets = new HashSet<>();
+                    if (exactSubscribers != null) {
+                        targets.addAll(exactSubscribers);
+                    }
+                }
+                targets.addAll(entry.getValue());
+            }
+        }
+
+        return targets != null ? targets
+                : exactSubscribers != null ? exactSubscribers : Collections.<InMemoryTransport>emptySet();
+    }
+
+    private static boolean isWildcard(String topic) {
+        return topic.indexOf('*') >= 0 || topic.endsWith(">");
+    }
+
+    // Solace style topic matching without splitting the topic into levels
+    static boolean matches(String subscription, String topic) {
+        int s = 0;
+        int t = 0;
+        while (s < subscription.length()) {
+            char c = subscription.charAt(s);
+            if (c == '>' && s == subscription.length() - 1 && (s == 0 || subscription.charAt(s - 1) == '/')) {
+                // Matches one or more remaining levels
+                return t < topic.length();
+            } else if (c == '*' && (s == subscription.length() - 1 || subscription.charAt(s + 1) == '/')) {
+                // Matches the rest of the current level
+                while (t < topic.length() && topic.charAt(t) != '/') {
+                    t++;
+                }
+                s++;
+            } else {
+                if (t >= topic.length() || topic.charAt(t) != c) {
+                    return false;
+                }
+                s++;
+                t++;
+            }
+        }
+        return t == topic.length();
+    }
+
+    // Reply handle attached to requests, routes the reply back to the waiting requestor
+    private static final class ReplyTo {
+        private final InMemoryTransport requestor;
+        private final long correlationId;
+
+        ReplyTo(InMemoryTransport requestor, long correlationId) {
+            this.requestor = requestor;
+            this.correlationId = correlationId;
+        }
+    }
+
+    private final class InMemoryTransport implements Transport {
+
+        private final ExecutorService dispatcher;
+        private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+        private final ConcurrentMap<Long, CompletableFuture<Message>> pendingRequests = new ConcurrentHashMap<>();
+        private final AtomicLong nextCorrelationId = new AtomicLong();
+
+        private volatile MessageHandler handler;
+
+        InMemoryTransport(ExecutorService dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void connect(MessageHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void subscribe(String topic) throws TransportException {
+            checkConnected();
+            if (subscriptions.add(topic)) {
+                addSubscription(topic, this);
+            }
+        }
+
+        @Override
+        public void unsubscribe(String topic) throws TransportException {
+            checkConnected();
+            if (subscriptions.remove(topic)) {
+                removeSubscription(topic, this);
+            }
+        }
+
+        @Override
+        public void publish(String topic, Message message) throws TransportException {
+            checkConnected();
+            route(topic, message.delivered(topic, null));
+        }
+
+        @Override
+        public void publishBatch(String[] topics, Message[] messages, int count) throws TransportException {
+            checkConnected();
+            route(topics, messages, count);
+        }
+
+        @Override
+        public Message request(String topic, Message message, long timeoutMillis) throws TransportException {
+            checkConnected();
+            long correlationId = nextCorrelationId.incrementAndGet();
+            CompletableFuture<Message> reply = new CompletableFuture<>();
+            pendingRequests.put(correlationId, reply);
+
+            try {
+                route(topic, message.delivered(topic, new ReplyTo(this, correlationId)));
+                return reply.get(timeoutMillis, TimeUnit.MILLISECONDS).delivered(topic, null);
+            } catch (TimeoutException e) {
+                throw new TransportTimeoutException("No reply received from " + topic, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransportException("Interrupted while waiting for a reply from " + topic, e);
+            } catch (ExecutionException e) {
+                throw new TransportException("Request to " + topic + " failed", e.getCause());
+            } finally {
+                pendingRequests.remove(correlationId);
+            }
+        }
+
+        @Override
+        public void reply(Message request, Message reply) throws TransportException {
+            checkConnected();
+            if (!(request.getReplyTo() instanceof ReplyTo)) {
+                throw new TransportException("Message was not delivered as a request by this broker");
+            }
+
+            // Only the first reply completes the request, like a JCSMP Requestor
+            ReplyTo replyTo = (ReplyTo) request.getReplyTo();
+            CompletableFuture<Message> pending = replyTo.requestor.pendingRequests.get(replyTo.correlationId);
+            if (pending != null) {
+                pending.complete(reply);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (String topic : subscriptions) {
+                removeSubscription(topic, this);
+            }
+            subscriptions.clear();
+            handler = null;
+        }
+
+        private void deliver(final Message message) {
+            try {
+                dispatcher.execute(() -> {
+                    MessageHandler current = handler;
+                    if (current != null) {
+                        current.onMessage(message);
+                    }
+                });
+            } catch (RejectedExecutionException ignored) {
+                // Broker is shutting down, drop the message like a disconnected session would
+            }
+        }
+
+        private void deliver(final List<Message> messages) {
+            try {
+                dispatcher.execute(() -> {
+                    MessageHandler current = handler;
+                    if (current != null) {
+                        for (Message message : messages) {
+                            current.onMessage(message);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ignored) {
+                // Broker is shutting down, drop the messages like a disconnected session would
+            }
+        }
+
+        private void checkConnected() throws TransportException {
+            if (handler == null) {
+                throw new TransportException("Transport is not connected");
+            }
+        }
+    }
+}
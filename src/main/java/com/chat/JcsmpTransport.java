@@ -0,0 +1,285 @@
+package com.chat;
+
+import com.solacesystems.jcsmp.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Transport backed by a Solace broker through the JCSMP API
+class JcsmpTransport implements Transport {
+
+    private final JCSMPSession session;
+
+    // Topic objects are immutable, cache them so the hot publish path does not create one per message
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    // A direct message can be reset and sent again once send returns, so text and bytes messages are pooled instead of
+    // created for every publish. Messages beyond the pool size are left to the garbage collector.
+    private static final int MESSAGE_POOL_SIZE = 64;
+    private final BlockingQueue<TextMessage> textPool = new ArrayBlockingQueue<>(MESSAGE_POOL_SIZE);
+    private final BlockingQueue<BytesMessage> bytesPool = new ArrayBlockingQueue<>(MESSAGE_POOL_SIZE);
+
+    // JCSMP accepts at most 50 messages per sendMultiple call, larger batches are sent in chunks. Each publishing
+    // thread keeps its own entries, they are pointed at the next message and topic for every chunk.
+    private static final int MAX_SEND_MULTIPLE = 50;
+    private final ThreadLocal<JCSMPSendMultipleEntry[]> sendEntries = ThreadLocal.withInitial(() -> {
+        JCSMPSendMultipleEntry[] entries = new JCSMPSendMultipleEntry[MAX_SEND_MULTIPLE];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = JCSMPFactory.onlyInstance().createSendMultipleEntry(null, null);
+        }
+        return entries;
+    });
+
+    private XMLMessageProducer producer;
+    private XMLMessageConsumer consumer;
+
+    // A requestor blocks on one request at a time, so requestors are pooled like messages: concurrent requests each
+    // take their own instead of queueing behind a slow or timed out one. Requestors beyond the pool size are dropped.
+    private static final int REQUESTOR_POOL_SIZE = 16;
+    private final BlockingQueue<Requestor> requestors = new ArrayBlockingQueue<>(REQUESTOR_POOL_SIZE);
+
+    JcsmpTransport(JCSMPProperties properties) throws TransportException {
+        try {
+            session = JCSMPFactory.onlyInstance().createSession(properties);
+        } catch (InvalidPropertiesException e) {
+            throw new TransportException("Invalid session properties", e);
+        }
+    }
+
+    @Override
+    public void connect(final MessageHandler handler) throws TransportException {
+        try {
+            session.connect();
+
+            // Producer, acknowledgements are not reported since printing one per message costs more than sending it
+            producer = session.getMessageProducer(new JCSMPStreamingPublishEventHandler() {
+                @Override
+                public void responseReceived(String messageID) {
+                }
+
+                @Override
+                public void handleError(String messageID, JCSMPException e, long timestamp) {
+                    handler.onPublishError(messageID + "@" + timestamp, e);
+                }
+            });
+
+            // Consumer, converts every supported JCSMP message before handing it over
+            consumer = session.getMessageConsumer(new XMLMessageListener() {
+                @Override
+                public void onReceive(BytesXMLMessage msg) {
+                    Message message = fromJcsmp(msg);
+                    if (message != null) {
+                        handler.onMessage(message.delivered(msg.getDestination().getName(),
+                                msg.getReplyTo() != null ? msg : null));
+                    }
+                }
+
+                @Override
+                public void onException(JCSMPException e) {
+                    System.out.printf("Consumer received exception: %s%n", e);
+                }
+            });
+            consumer.start();
+            requestors.offer(session.createRequestor());
+        } catch (JCSMPException e) {
+            throw new TransportException("Unable to connect to the broker", e);
+        }
+    }
+
+    @Override
+    public void subscribe(String topic) throws TransportException {
+        try {
+            session.addSubscription(topic(topic));
+        } catch (JCSMPException e) {
+            throw new TransportException("Unable to subscribe to " + topic, e);
+        }
+    }
+
+    @Override
+    public void unsubscribe(String topic) throws TransportException {
+        try {
+            session.removeSubscription(topic(topic));
+        } catch (JCSMPException e) {
+            throw new TransportException("Unable to unsubscribe from " + topic, e);
+        }
+    }
+
+    @Override
+    public void publish(String topic, Message message) throws TransportException {
+        XMLMessage msg = acquire(message);
+        try {
+            producer.send(msg, topic(topic));
+        } catch (JCSMPException e) {
+            throw new TransportException("Unable to publish to " + topic, e);
+        } finally {
+            release(msg);
+        }
+    }
+
+    @Override
+    public void publishBatch(String[] topics, Message[] messages, int count) throws TransportException {
+        JCSMPSendMultipleEntry[] entries = sendEntries.get();
+        XMLMessage[] sent = new XMLMessage[Math.min(count, MAX_SEND_MULTIPLE)];
+
+        for (int offset = 0; offset < count; offset += MAX_SEND_MULTIPLE) {
+            int length = Math.min(count - offset, MAX_SEND_MULTIPLE);
+            try {
+                for (int i = 0; i < length; i++) {
+                    sent[i] = acquire(messages[offset + i]);
+                    entries[i].setMessage(sent[i]).setDestination(topic(topics[offset + i]));
+                }
+                producer.sendMultiple(entries, 0, length, 0);
+            } catch (JCSMPException e) {
+                throw new TransportException("Unable to publish a batch of " + count + " messages", e);
+            } finally {
+                for (int i = 0; i < length && sent[i] != null; i++) {
+                    entries[i].setMessage(null);
+                    release(sent[i]);
+                    sent[i] = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Message request(String topic, Message message, long timeoutMillis) throws TransportException {
+        try {
+            BytesXMLMessage reply;
+            Requestor requestor = requestors.poll();
+            if (requestor == null) {
+                requestor = session.createRequestor();
+            }
+            try {
+                reply = requestor.request(toJcsmp(message), timeoutMillis, topic(topic));
+            } finally {
+                requestors.offer(requestor);
+            }
+            Message converted = fromJcsmp(reply);
+            if (converted == null) {
+                throw new TransportException("Unexpected reply type from " + topic);
+            }
+            return converted.delivered(topic, null);
+        } catch (JCSMPRequestTimeoutException e) {
+            throw new TransportTimeoutException("No reply received from " + topic, e);
+        } catch (JCSMPException e) {
+            throw new TransportException("Request to " + topic + " failed", e);
+        }
+    }
+
+    @Override
+    public void reply(Message request, Message reply) throws TransportException {
+        if (!(request.getReplyTo() instanceof XMLMessage)) {
+            throw new TransportException("Message was not delivered as a request by this transport");
+        }
+
+        XMLMessage msg = acquire(reply);
+        try {
+            producer.sendReply((XMLMessage) request.getReplyTo(), msg);
+        } catch (JCSMPException e) {
+            throw new TransportException("Unable to reply to request", e);
+        } finally {
+            release(msg);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (consumer != null) {
+            consumer.close();
+        }
+        if (producer != null) {
+            producer.close();
+        }
+        session.closeSession();
+    }
+
+    private Topic topic(String name) {
+        Topic topic = topics.get(name);
+        if (topic == null) {
+            topic = JCSMPFactory.onlyInstance().createTopic(name);
+            topics.putIfAbsent(name, topic);
+        }
+        return topic;
+    }
+
+    // Converts a message for a direct send, reusing a pooled JCSMP message when one is available. Streams are rare
+    // (history replies) and are not pooled.
+    private XMLMessage acquire(Message message) {
+        if (message.isBytes()) {
+            BytesMessage bytesMsg = bytesPool.poll();
+            if (bytesMsg == null) {
+                bytesMsg = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+            }
+            bytesMsg.setData(message.getBytes());
+            return bytesMsg;
+        } else if (message.isText()) {
+            TextMessage textMsg = textPool.poll();
+            if (textMsg == null) {
+                textMsg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+            }
+            textMsg.setText(message.getText());
+            return textMsg;
+        }
+        return toJcsmp(message);
+    }
+
+    // Returns a message to its pool once the send that used it has returned
+    private void release(XMLMessage msg) {
+        if (msg instanceof BytesMessage) {
+            msg.reset();
+            bytesPool.offer((BytesMessage) msg);
+        } else if (msg instanceof TextMessage) {
+            msg.reset();
+            textPool.offer((TextMessage) msg);
+        }
+    }
+
+    // TextMessage for text, StreamMessage with an SDTStream of strings for streams, BytesMessage for binary
+    static XMLMessage toJcsmp(Message message) {
+        if (message.isBytes()) {
+            BytesMessage bytesMsg = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+            bytesMsg.setData(message.getBytes());
+            return bytesMsg;
+        } else if (message.isStream()) {
+            StreamMessage streamMsg = JCSMPFactory.onlyInstance().createMessage(StreamMessage.class);
+            SDTStream stream = JCSMPFactory.onlyInstance().createStream();
+            for (String line : message.getStream()) {
+                stream.writeString(line);
+            }
+            streamMsg.setStream(stream);
+            return streamMsg;
+        }
+
+        TextMessage textMsg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
+        textMsg.setText(message.getText());
+        return textMsg;
+    }
+
+    // Returns null for message types the chat does not use
+    private static Message fromJcsmp(BytesXMLMessage msg) {
+        if (msg instanceof BytesMessage) {
+            return Message.bytes(((BytesMessage) msg).getData());
+        } else if (msg instanceof TextMessage) {
+            return Message.text(((TextMessage) msg).getText());
+        } else if (msg instanceof StreamMessage) {
+            SDTStream stream = ((StreamMessage) msg).getStream();
+            List<String> lines = new ArrayList<>();
+
+            // Consume the stream until it is complete
+            while (stream.hasRemaining()) {
+                try {
+                    lines.add(stream.readString());
+                } catch (SDTException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+            return Message.stream(lines);
+        }
+        return null;
+    }
+}
@@ -2,175 +2,282 @@ package com.chat;
 
 import com.solacesystems.jcsmp.*;
 
+import javax.management.JMException;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
-public class Listener {
+public class Listener implements MessageHandler {
 
-    // Listener application for chat program
-    public static void main(String[] args) throws JCSMPException {
-        Map<String, ArrayList<String>> messageHistory = new HashMap<>();
+    // Number of history lines pushed to a client when it joins a room
+    static final int JOIN_HISTORY_LINES = 20;
 
-        // Check command line arguments
-        if (args.length != 3 || args[1].split("@").length != 2) {
-            System.out.println("Usage: TopicSubscriber <host:port> <client-username@message-vpn> <client-password>");
-            System.out.println();
-            System.exit(-1);
+    // Upper bound on the lines returned by a single history page request
+    static final int MAX_PAGE_LINES = 100;
+
+    // Upper bound on the lines returned by a single search request
+    static final int MAX_SEARCH_RESULTS = 50;
+
+    // Default size of the pool building history replies and of its backlog
+    static final int DEFAULT_REPLY_THREADS = 2;
+    static final int DEFAULT_REPLY_QUEUE = 1024;
+
+    // Default number of threads storing room messages, and the backlog of each
+    static final int DEFAULT_INGEST_THREADS = 1;
+    static final int INGEST_QUEUE = 8192;
+
+    // Reply asking the client to send its request again later, sent when the listener is overloaded
+    static final String RETRY = "RETRY";
+
+    // New clients will send a request and await a reply from Listener from this topic
+    static final String LOBBY_TOPIC = "chat/lobby";
+
+    // Used by clients to announce their subscription to a topic (chat room). The listener can reply back with
+    // message history if such history exists.
+    static final String HEARTBEAT_TOPIC = "chat/heartbeat";
+
+    // Used by the listener to track all message history
+    static final String ROOMS_TOPIC = "chat/rooms/*";
+
+    // Clients search the history of a room by sending a request to this topic
+    static final String SEARCH_TOPIC = "chat/search";
+
+    // The listener announces changes to the members of a room on this prefix followed by the room name
+    static final String PRESENCE_PREFIX = "chat/presence/";
+
+    // Default interval between snapshots of the history, when snapshots are configured
+    static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 300;
+
+    // Default interval between presence announcements
+    static final long DEFAULT_PRESENCE_INTERVAL_MILLIS = 2000;
+
+    // Every chat room is a topic under this prefix
+    static final String ROOM_PREFIX = "chat/rooms/";
+
+    private final Transport transport;
+    private final MessageHistory messageHistory;
+    private final SearchIndex searchIndex;
+    private final String welcomeMessage;
+
+    // The dispatcher thread only routes messages. Room messages are stored by the ingest stages, each room always on
+    // the same one so its lines stay in order, and requests needing a reply are answered by the reply stage.
+    private final Stage[] ingestStages;
+    private final Stage replyStage;
+
+    private final ListenerMetrics metrics;
+
+    // Errors that can happen for every message are counted by the metrics and only printed now and then
+    private final RateLimitedLog malformedLog = new RateLimitedLog();
+    private final RateLimitedLog replyErrorLog = new RateLimitedLog();
+    private final RateLimitedLog transportErrorLog = new RateLimitedLog();
+
+    // Members of the rooms this listener owns, changes are announced by the presence publisher
+    private final PresenceTable presence = new PresenceTable();
+    private ScheduledExecutorService presencePublisher;
+
+    // When several listeners share the load, each one only stores and serves the rooms the ring assigns to its shard
+    private final ShardRing shardRing;
+    private final int shard;
+
+    // Rooms this shard has subscribed to individually, only used when sharded
+    private final Set<String> roomSubscriptions = ConcurrentHashMap.newKeySet();
+
+    // Indexes the history restored on startup for search, see indexRestoredHistory
+    private Thread searchBackfill;
+
+    Listener(Transport transport, MessageHistory messageHistory, String welcomeMessage) {
+        this(transport, messageHistory, welcomeMessage, DEFAULT_REPLY_THREADS, DEFAULT_REPLY_QUEUE);
+    }
+
+    Listener(Transport transport, MessageHistory messageHistory, String welcomeMessage, int replyThreads,
+             int replyQueue) {
+        this(transport, messageHistory, welcomeMessage, replyThreads, replyQueue, DEFAULT_INGEST_THREADS,
+                new ShardRing(1), 0, new SearchIndex(SearchIndex.DEFAULT_MAX_LINES));
+    }
+
+    Listener(Transport transport, MessageHistory messageHistory, String welcomeMessage, int replyThreads,
+             int replyQueue, int ingestThreads, ShardRing shardRing, int shard, SearchIndex searchIndex) {
+        if (shard < 0 || shard >= shardRing.shards()) {
+            throw new IllegalArgumentException("Shard " + shard + " is not part of a ring of " + shardRing.shards());
         }
-        if (args[1].split("@")[0].isEmpty()) {
-            System.out.println("No client-username entered");
-            System.out.println();
-            System.exit(-1);
+        this.transport = transport;
+        this.messageHistory = messageHistory;
+        this.searchIndex = searchIndex;
+        this.welcomeMessage = welcomeMessage;
+        this.metrics = new ListenerMetrics(messageHistory, searchIndex);
+        this.shardRing = shardRing;
+        this.shard = shard;
+
+        // Bounded backlogs, see onMessage for what happens when they are full
+        this.ingestStages = new Stage[Math.max(1, ingestThreads)];
+        for (int i = 0; i < ingestStages.length; i++) {
+            ingestStages[i] = new Stage("listener-ingest-" + i, 1, INGEST_QUEUE);
         }
-        if (args[1].split("@")[1].isEmpty()) {
-            System.out.println("No message-vpn entered");
+        this.replyStage = new Stage("listener-reply", replyThreads, replyQueue);
+        metrics.watchBacklog(() -> {
+            int backlog = 0;
+            for (Stage stage : ingestStages) {
+                backlog += stage.size();
+            }
+            return backlog;
+        }, replyStage::size);
+
+        // The index of a room going cold gives back its spare capacity, the index itself stays uncompressed so
+        // searching a cold room stays cheap
+        messageHistory.onCold(searchIndex::compact);
+    }
+
+    // Listener application for chat program, see ListenerConfig for its arguments and settings
+    public static void main(String[] args) throws TransportException {
+        final ListenerConfig config;
+        try {
+            config = ListenerConfig.load(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println(e instanceof IOException ? "Unable to read the configuration: " + e : e.getMessage());
             System.out.println();
             System.exit(-1);
+            return;
         }
 
         System.out.println("Initializing...");
         final JCSMPProperties properties = new JCSMPProperties();
-        properties.setProperty(JCSMPProperties.HOST, args[0]);     // host:port
-        properties.setProperty(JCSMPProperties.USERNAME, args[1].split("@")[0]); // client-username
-        properties.setProperty(JCSMPProperties.PASSWORD, args[2]); // client-password
-        properties.setProperty(JCSMPProperties.VPN_NAME, args[1].split("@")[1]); // message-vpn
-        final JCSMPSession session = JCSMPFactory.onlyInstance().createSession(properties);
-
-        Scanner in = new Scanner(System.in);
-        System.out.println("Would you like to set a welcome message? A blank response will not have a welcome message");
-        String input = in.nextLine();
+        properties.setProperty(JCSMPProperties.HOST, config.host);         // host:port
+        properties.setProperty(JCSMPProperties.USERNAME, config.username); // client-username
+        properties.setProperty(JCSMPProperties.PASSWORD, config.password); // client-password
+        properties.setProperty(JCSMPProperties.VPN_NAME, config.vpn);      // message-vpn
+        final Transport transport = new JcsmpTransport(properties);
 
-        // Set up a welcome message for connecting clients
+        // Set up a welcome message for connecting clients, chat.welcome or asked for on the console
+        String input = config.welcome;
+        if (input == null && config.interactive) {
+            Scanner in = new Scanner(System.in);
+            System.out.println("Would you like to set a welcome message? "
+                    + "A blank response will not have a welcome message");
+            input = in.nextLine();
+        }
         final String welcomeMessage;
-        if (input.length() != 0) {
+        if (input != null && input.length() != 0) {
             welcomeMessage = input;
         } else {
             welcomeMessage = "No welcome message.";
         }
 
-        // New clients will send a request and await a reply from Listener from this topic
-        final Topic lobby = JCSMPFactory.onlyInstance().createTopic("chat/lobby");
-
-        // Used by clients to announce their subscription to a topic (chat room). The listener can reply back with
-        // message history if such history exists.
-        final Topic callback = JCSMPFactory.onlyInstance().createTopic("chat/heartbeat");
-
-        // Used by the listener to track all message history
-        final Topic rooms = JCSMPFactory.onlyInstance().createTopic("chat/rooms/*");
-
-        // Producer for sending messages
-        final XMLMessageProducer producer = session.getMessageProducer(new JCSMPStreamingPublishEventHandler() {
-            @Override
-            public void responseReceived(String messageID) {
-                System.out.println("Producer received response for msg: " + messageID);
-            }
-
-            @Override
-            public void handleError(String messageID, JCSMPException e, long timestamp) {
-                System.out.printf("Producer received error for msg: %s@%s - %s%n",
-                        messageID, timestamp, e);
-            }
-        });
-
-        // Consumer for retrieving messages
-        final XMLMessageConsumer consumer = session.getMessageConsumer(new XMLMessageListener() {
-            @Override
-            public void onReceive(BytesXMLMessage request) {
-                if (request.getReplyTo() != null) {
-                    switch (request.getDestination().getName()) {
-                        case "chat/heartbeat":
-                            // If the user joins, attempt to send them the message history if it exists.
-                            String[] heartbeat = ((TextMessage)request).getText().split("-");
-                            System.out.println(heartbeat[0] + " Joined " + heartbeat[2]);
-
-                            // If the client is joining the topic
-                            if (heartbeat[1].equals("join")) {
-                                // If the room already existed, attempt to send them the message history
-                                if (!messageHistory.containsKey("chat/rooms/" + heartbeat[2])) {
-                                    System.out.println("No previous history. Sending ACK.");
-                                    TextMessage msg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
-                                    msg.setText("ACK");
-
-                                    try {
-                                        producer.sendReply(request, msg);
-                                    } catch (JCSMPException e) {
-                                        e.printStackTrace();
-                                    }
-
-                                    messageHistory.put("chat/rooms/" + heartbeat[2], new ArrayList<>());
-                                } else {
-                                    System.out.println("Sending previous history to " + heartbeat[0]);
-                                    // Prepare stream of strings to be sent
-                                    ArrayList<String> msgList = messageHistory.get("chat/rooms/" + heartbeat[2]);
-
-                                    StreamMessage textMsg = JCSMPFactory.onlyInstance().createMessage(StreamMessage.class);
-                                    SDTStream stream = JCSMPFactory.onlyInstance().createStream();
-
-                                    // If the message history contains more than 20 lines, only send the first 20 lines
-                                    int count = msgList.size() > 20 ? msgList.size() - 20 : 0;
-
-                                    if (msgList.size() > 20) {
-                                        stream.writeString("-- Message history exceeded 20 lines. History pruned. --");
-                                    }
-
-                                    for (int i = count; i < msgList.size(); i++) {
-                                        stream.writeString(msgList.get(i));
-                                    }
-
-                                    textMsg.setStream(stream);
-
-                                    // Attempt to reply to the client
-                                    try {
-                                        producer.sendReply(request, textMsg);
-                                    } catch (JCSMPException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            }
-                            break;
-                        case "chat/lobby":
-                            System.out.println("A client joined the exchange. Sending welcome message...");
-                            TextMessage reply = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
-                            reply.setText(welcomeMessage);
-
-                            try {
-                                producer.sendReply(request, reply);
-                            } catch (JCSMPException e) {
-                                System.out.println("Error replying to client.");
-                                e.printStackTrace();
-                            }
-                            break;
-                    }
-                } else {
-                    // If the message received is not for welcome message
-                    if (request instanceof TextMessage) {
-                        if (request.getDestination().getName().equals("chat/heartbeat")) {
-                            String[] heartbeat = ((TextMessage)request).getText().split("-");
-                            if (heartbeat.length == 3) {
-                                System.out.println(heartbeat[0] + " Left " + heartbeat[2]);
-                            }
-                        } else {
-                            // A regular message was received, store it in the array.
-                            if (!messageHistory.containsKey(request.getDestination().getName())) {
-                                messageHistory.put(request.getDestination().getName(), new ArrayList<>());
-                            }
-                            messageHistory.get(request.getDestination().getName()).add(((TextMessage) request).getText());
-                        }
-                    }
+        try {
+            final Listener listener = create(config, transport, welcomeMessage);
+            run(config, listener);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println();
+            System.exit(-1);
+        }
+    }
+
+    private static Listener create(ListenerConfig config, Transport transport, String welcomeMessage)
+            throws TransportException {
+        // Bounded per-room history, the capacity can be tuned with chat.history.capacity=<lines>. Setting
+        // chat.history.dir=<directory> also persists every message and restores the rooms on startup. Without a log,
+        // chat.snapshot.file=<file> keeps a snapshot of the history written every chat.snapshot.interval seconds and
+        // on exit, and restores it on startup.
+        final int capacity = config.getInt("chat.history.capacity", MessageHistory.DEFAULT_CAPACITY);
+        final String historyDir = config.get("chat.history.dir", null);
+        final String snapshotFile = config.get("chat.snapshot.file", null);
+        final MessageHistory messageHistory;
+        if (historyDir == null) {
+            messageHistory = new MessageHistory(capacity);
+            if (snapshotFile != null) {
+                try {
+                    long start = System.currentTimeMillis();
+                    int rooms = HistorySnapshot.read(Paths.get(snapshotFile), messageHistory,
+                            Runtime.getRuntime().availableProcessors());
+                    System.out.printf("Restored %d rooms from %s in %d ms%n", rooms, snapshotFile,
+                            System.currentTimeMillis() - start);
+                } catch (IOException e) {
+                    // Starting empty loses nothing more than the damaged snapshot already did
+                    System.out.println("Unable to restore the history snapshot " + snapshotFile + ", starting empty");
+                    e.printStackTrace();
                 }
+                messageHistory.startSnapshots(Paths.get(snapshotFile),
+                        config.getLong("chat.snapshot.interval", DEFAULT_SNAPSHOT_INTERVAL_SECONDS));
             }
-
-            @Override
-            public void onException(JCSMPException e) {
-                System.out.printf("Consumer received exception: %s%n", e);
+        } else {
+            if (snapshotFile != null) {
+                System.out.println("Ignoring chat.snapshot.file, the history log in " + historyDir + " is used");
+            }
+            try {
+                long start = System.currentTimeMillis();
+                messageHistory = new MessageHistory(capacity, new HistoryLog(Paths.get(historyDir),
+                        config.getInt("chat.history.segmentSize", HistoryLog.DEFAULT_SEGMENT_SIZE)));
+                System.out.printf("Restored %d rooms from %s in %d ms%n", messageHistory.roomCount(), historyDir,
+                        System.currentTimeMillis() - start);
+            } catch (IOException e) {
+                System.out.println("Unable to open the history log in " + historyDir);
+                e.printStackTrace();
+                System.exit(-1);
+                return null;
             }
-        });
+        }
 
-        // Subscribe to the lobby, heartbeat, and all rooms on the broker
-        session.addSubscription(lobby);
-        session.addSubscription(callback);
-        session.addSubscription(rooms);
-        consumer.start();
+        // Rooms idle for chat.history.idle seconds, and the least recently used rooms once the hot ones exceed
+        // chat.history.hotBytes, are compressed every chat.history.sweep seconds (0 turns tiering off)
+        messageHistory.startTiering(config.getLong("chat.history.sweep", 30), config.getLong("chat.history.idle", 300),
+                config.getLong("chat.history.hotBytes", 0));
+
+        // History replies are built on chat.reply.threads workers with a backlog of chat.reply.queue requests and
+        // room messages are stored by chat.ingest.threads workers.
+        // Running N listeners with chat.shard.count=N and chat.shard.index=0..N-1 splits the rooms between them.
+        // Search covers the newest chat.search.lines lines of each room, by default four times the history capacity.
+        Listener listener = new Listener(transport, messageHistory, welcomeMessage,
+                config.getInt("chat.reply.threads", DEFAULT_REPLY_THREADS),
+                config.getInt("chat.reply.queue", DEFAULT_REPLY_QUEUE),
+                config.getInt("chat.ingest.threads", DEFAULT_INGEST_THREADS),
+                new ShardRing(config.getInt("chat.shard.count", 1),
+                        config.getInt("chat.shard.vnodes", ShardRing.DEFAULT_VIRTUAL_NODES)),
+                config.getInt("chat.shard.index", 0),
+                new SearchIndex(config.getInt("chat.search.lines", SearchIndex.HISTORY_MULTIPLE * capacity)));
+        listener.start();
+
+        // Metrics are available over JMX and printed every chat.metrics.interval seconds (0 disables the output)
+        try {
+            listener.metrics().registerMBean();
+        } catch (JMException e) {
+            System.out.println("Unable to register the listener metrics with JMX.");
+            e.printStackTrace();
+        }
+        listener.metrics().startReporting(config.getLong("chat.metrics.interval", 60));
+
+        // Room members are announced every chat.presence.interval milliseconds, members that stopped pinging are
+        // dropped after chat.presence.expiry seconds
+        listener.startPresence(config.getLong("chat.presence.interval", DEFAULT_PRESENCE_INTERVAL_MILLIS),
+                TimeUnit.SECONDS.toMillis(config.getLong("chat.presence.expiry",
+                        PresenceTable.DEFAULT_EXPIRY_SECONDS)));
+        return listener;
+    }
+
+    // An interactive listener exits when enter is pressed, one started from a configuration file runs until the
+    // process is stopped. Either way the listener is closed on the way out, which stores every message already
+    // received before the final snapshot is written
+    private static void run(ListenerConfig config, Listener listener) {
+        if (!config.interactive) {
+            CountDownLatch closed = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("Exiting...");
+                listener.close();
+                closed.countDown();
+            }, "listener-shutdown"));
+            System.out.println("Listener is running. Stop the process to exit");
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
 
         System.out.print("\033[H\033[2J");
         System.out.flush();
@@ -184,8 +291,394 @@ public class Listener {
         }
 
         System.out.println("Exiting...");
-        consumer.close();
-        producer.close();
-        session.closeSession();
+        listener.close();
+    }
+
+    // Connects the transport and subscribes to the lobby, heartbeat, and all rooms on the broker. A sharded listener
+    // instead subscribes to each room of its shard, starting with the ones it already has history for.
+    void start() throws TransportException {
+        List<String> restored = new ArrayList<>(messageHistory.roomNames());
+        if (!restored.isEmpty()) {
+            searchBackfill = new Thread(() -> indexRestoredHistory(restored), "listener-search-backfill");
+            searchBackfill.setDaemon(true);
+            searchBackfill.start();
+        }
+
+        transport.connect(this);
+        transport.subscribe(LOBBY_TOPIC);
+        transport.subscribe(HEARTBEAT_TOPIC);
+        transport.subscribe(SEARCH_TOPIC);
+        if (!isSharded()) {
+            transport.subscribe(ROOMS_TOPIC);
+            return;
+        }
+
+        for (String room : messageHistory.roomNames()) {
+            if (owns(room)) {
+                subscribeRoom(room);
+            }
+        }
+    }
+
+    // Makes restored history searchable in the background so the listener serves as soon as it is connected. Each
+    // room is indexed by its own ingest stage, ordered with its live messages, and only while the stage is at most
+    // half full so live traffic keeps priority.
+    private void indexRestoredHistory(List<String> rooms) {
+        long start = System.currentTimeMillis();
+        try {
+            for (String room : rooms) {
+                Stage stage = ingestStage(room);
+                Runnable task = () -> indexRestoredRoom(room);
+                while (stage.size() > stage.capacity() / 2 || !stage.offer(task)) {
+                    if (stage.isStopped()) {
+                        return;
+                    }
+                    Thread.sleep(1);
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        System.out.printf("Indexed the history of %d restored rooms in %d ms%n", rooms.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    // Runs on the room's ingest stage. Lines stored since startup are already indexed and are the newest ones of
+    // the history, the rest is indexed in front of them.
+    private void indexRestoredRoom(String room) {
+        RoomHistory roomHistory = messageHistory.get(room);
+        if (roomHistory == null) {
+            return;
+        }
+        List<String> lines = roomHistory.peek();
+        int indexed = searchIndex.size(room);
+        if (indexed < lines.size()) {
+            searchIndex.seed(room, lines.subList(0, lines.size() - indexed));
+        }
+    }
+
+    private Stage ingestStage(String room) {
+        return ingestStages[Math.floorMod(room.hashCode(), ingestStages.length)];
+    }
+
+    boolean isSharded() {
+        return shardRing.shards() > 1;
+    }
+
+    // True if this listener stores and serves the room
+    boolean owns(String room) {
+        return shardRing.shardOf(room) == shard;
+    }
+
+    // Sharded listeners learn about new rooms from join requests and subscribe to them before replying, so the
+    // joining client cannot publish to the room before we listen to it
+    private void subscribeRoom(String room) {
+        if (isSharded() && roomSubscriptions.add(room)) {
+            try {
+                transport.subscribe(room);
+            } catch (TransportException e) {
+                roomSubscriptions.remove(room);
+                transportErrorLog.log("Unable to subscribe to " + room, e);
+            }
+        }
+    }
+
+    // Every intervalMillis, drops members not seen for expiryMillis and announces the net changes of every room on
+    // chat/presence/<room>
+    synchronized void startPresence(long intervalMillis, long expiryMillis) {
+        if (intervalMillis <= 0 || presencePublisher != null) {
+            return;
+        }
+        presencePublisher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("listener-presence"));
+        presencePublisher.scheduleWithFixedDelay(() -> publishPresence(System.currentTimeMillis() - expiryMillis),
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stopPresence() {
+        if (presencePublisher != null) {
+            presencePublisher.shutdown();
+            presencePublisher = null;
+        }
+    }
+
+    void publishPresence(long seenBeforeMillis) {
+        presence.expire(seenBeforeMillis);
+
+        Envelope update = new Envelope();
+        StringBuilder body = new StringBuilder();
+        for (PresenceTable.Delta delta : presence.drain()) {
+            body.setLength(0);
+            for (String member : delta.joined) {
+                body.append(body.length() == 0 ? "+" : "\n+").append(member);
+            }
+            for (String member : delta.left) {
+                body.append(body.length() == 0 ? "-" : "\n-").append(member);
+            }
+
+            String room = delta.room.substring(ROOM_PREFIX.length());
+            update.set(Envelope.PRESENCE, room, "", body.toString());
+            update.count = delta.count;
+            try {
+                transport.publish(PRESENCE_PREFIX + room, Message.envelope(update));
+            } catch (TransportException e) {
+                transportErrorLog.log("Unable to publish the presence of " + delta.room, e);
+            }
+        }
+    }
+
+    PresenceTable presence() {
+        return presence;
+    }
+
+    ListenerMetrics metrics() {
+        return metrics;
+    }
+
+    // Stops receiving first, then stores every room message already received before the history is closed, so the
+    // final snapshot or the log holds all of them. Queued requests are dropped, they can no longer be answered.
+    void close() {
+        if (searchBackfill != null) {
+            searchBackfill.interrupt();
+        }
+        metrics.stopReporting();
+        stopPresence();
+        transport.close();
+        try {
+            for (Stage stage : ingestStages) {
+                stage.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted while storing the remaining messages.");
+        }
+        replyStage.shutdown();
+        try {
+            messageHistory.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close the history log.");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onMessage(Message request) {
+        final long receivedNanos = System.nanoTime();
+        try {
+            if (request.isRequest()) {
+                switch (request.getDestination()) {
+                    case HEARTBEAT_TOPIC:
+                        if (request.isBytes()) {
+                            // Decoded into its own envelope since it is handed over to the reply stage
+                            final Envelope heartbeat = EnvelopeCodec.local().decode(request.getBytes(), new Envelope());
+
+                            // If the user joins, attempt to send them the message history if it exists. A history
+                            // request asks for an older page of a room the user is already in. Rooms of other shards
+                            // are answered by their own listener.
+                            final String room = ROOM_PREFIX + heartbeat.room;
+                            if (!owns(room)) {
+                                break;
+                            }
+                            if (heartbeat.type == Envelope.JOIN) {
+                                metrics.joined();
+                                presence.seen(room, member(heartbeat), heartbeat.sender, System.currentTimeMillis());
+                                submitReply(new ReplyTask(request, receivedNanos, room, () -> joinReply(room)));
+                            } else if (heartbeat.type == Envelope.HISTORY) {
+                                submitReply(new ReplyTask(request, receivedNanos, null,
+                                        () -> historyReply(room, heartbeat.cursor, heartbeat.count)));
+                            } else if (heartbeat.type == Envelope.WHO) {
+                                submitReply(new ReplyTask(request, receivedNanos, null,
+                                        () -> Message.stream(presence.members(room))));
+                            }
+                        }
+                        break;
+                    case SEARCH_TOPIC:
+                        if (request.isBytes()) {
+                            // Answered by the shard storing the room, off the dispatcher like history pages
+                            final Envelope search = EnvelopeCodec.local().decode(request.getBytes(), new Envelope());
+                            final String room = ROOM_PREFIX + search.room;
+                            if (search.type == Envelope.SEARCH && owns(room)) {
+                                submitReply(new ReplyTask(request, receivedNanos, null,
+                                        () -> searchReply(room, search.body, search.count)));
+                            }
+                        }
+                        break;
+                    case LOBBY_TOPIC:
+                        // A client joined the exchange, send the welcome message. Any shard may answer. Greetings
+                        // are only a courtesy, they are skipped while the reply stage is more than half full.
+                        if (replyStage.size() > replyStage.capacity() / 2) {
+                            metrics.greetingShed();
+                            break;
+                        }
+                        metrics.greeted();
+                        try {
+                            transport.reply(request, Message.text(welcomeMessage));
+                        } catch (TransportException e) {
+                            metrics.replyFailed();
+                            replyErrorLog.log("Error replying to client.", e);
+                        }
+                        break;
+                }
+            } else if (request.getDestination().equals(HEARTBEAT_TOPIC)) {
+                // Leaves and presence pings, rooms of other shards are tracked by their own listener
+                byte type = request.isBytes() ? EnvelopeCodec.type(request.getBytes()) : 0;
+                if (type == Envelope.LEAVE || type == Envelope.PING) {
+                    Envelope heartbeat = EnvelopeCodec.local().decode(request.getBytes(), new Envelope());
+                    String room = ROOM_PREFIX + heartbeat.room;
+                    if (!owns(room)) {
+                        return;
+                    }
+                    if (type == Envelope.LEAVE) {
+                        presence.leave(room, member(heartbeat));
+                        metrics.left();
+                    } else {
+                        presence.seen(room, member(heartbeat), heartbeat.sender, System.currentTimeMillis());
+                    }
+                }
+            } else if (request.isBytes() || request.isText()) {
+                // A regular message was received, handed to the ingest stage of its room. History is never dropped:
+                // while that stage is full the dispatcher waits, which pushes back on the broker. Only messages
+                // still arriving after close stopped the stage are not stored.
+                Stage stage = ingestStage(request.getDestination());
+                Runnable task = () -> ingest(request);
+                if (!stage.offer(task) && !stage.isStopped()) {
+                    metrics.ingestDelayed();
+                    stage.put(task);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            metrics.malformedMessage();
+            malformedLog.log("Malformed message received on " + request.getDestination(), null);
+        }
+    }
+
+    // Members are told apart by their client id, a client that sent none is known by its name
+    private static String member(Envelope heartbeat) {
+        return heartbeat.client.isEmpty() ? heartbeat.sender : heartbeat.client;
+    }
+
+    // Stores a room message in the history and the search index
+    void ingest(Message message) {
+        try {
+            String line = message.isBytes() ? EnvelopeCodec.local().decodeLine(message.getBytes()) : message.getText();
+            if (line != null) {
+                messageHistory.append(message.getDestination(), line);
+                searchIndex.add(message.getDestination(), line);
+                metrics.messageIngested(message.getDestination());
+            }
+        } catch (IllegalArgumentException e) {
+            metrics.malformedMessage();
+            malformedLog.log("Malformed message received on " + message.getDestination(), null);
+        }
+    }
+
+    // Queues a reply. When the reply stage is full the oldest queued request is dropped and its client is asked to
+    // retry, so the backlog holds the most recent requests and a client never waits for its full timeout. Only the
+    // reply is dropped, a dropped join still subscribes to its room.
+    private void submitReply(ReplyTask task) {
+        if (replyStage.offer(task)) {
+            return;
+        }
+
+        Runnable oldest = replyStage.poll();
+        if (oldest instanceof ReplyTask) {
+            ((ReplyTask) oldest).shed();
+        }
+        if (!replyStage.offer(task)) {
+            task.shed();
+        }
+    }
+
+    private void askToRetry(Message request) {
+        metrics.replyDropped();
+        try {
+            transport.reply(request, Message.text(RETRY));
+        } catch (TransportException e) {
+            metrics.replyFailed();
+            replyErrorLog.log("Error asking a client to retry.", e);
+        }
+    }
+
+    // A request waiting in the reply stage, the reply is only built once a worker gets to it
+    private final class ReplyTask implements Runnable {
+        private final Message request;
+        private final long receivedNanos;
+
+        // The room a join subscribes to before it is answered, null for other requests
+        private final String subscribe;
+        private final Supplier<Message> reply;
+
+        ReplyTask(Message request, long receivedNanos, String subscribe, Supplier<Message> reply) {
+            this.request = request;
+            this.receivedNanos = receivedNanos;
+            this.subscribe = subscribe;
+            this.reply = reply;
+        }
+
+        @Override
+        public void run() {
+            if (subscribe != null) {
+                subscribeRoom(subscribe);
+            }
+            sendReply(request, reply.get(), receivedNanos);
+        }
+
+        // Drops the reply but never the subscription, otherwise the room's messages would not be stored once the
+        // client publishes anyway
+        void shed() {
+            if (subscribe != null) {
+                subscribeRoom(subscribe);
+            }
+            askToRetry(request);
+        }
+    }
+
+    private void sendReply(Message request, Message reply, long receivedNanos) {
+        // Attempt to reply to the client
+        try {
+            transport.reply(request, reply);
+            metrics.replySent(receivedNanos, reply);
+        } catch (TransportException e) {
+            metrics.replyFailed();
+            replyErrorLog.log("Error replying to client.", e);
+        }
+    }
+
+    @Override
+    public void onPublishError(String messageId, Exception e) {
+        metrics.producerError();
+    }
+
+    // Builds the reply to a client joining a room. If the room already existed the reply is a history page with its
+    // last lines, otherwise the room is created and the reply is the literal string "ACK".
+    Message joinReply(String room) {
+        RoomHistory roomHistory = messageHistory.get(room);
+        if (roomHistory == null) {
+            messageHistory.room(room);
+            return Message.text("ACK");
+        }
+        return pageReply(roomHistory.page(roomHistory.total(), JOIN_HISTORY_LINES));
+    }
+
+    // Builds the reply to a request for at most count lines older than the cursor
+    Message historyReply(String room, long cursor, int count) {
+        RoomHistory roomHistory = messageHistory.get(room);
+        if (roomHistory == null) {
+            return pageReply(new RoomHistory.Page(0, false, Collections.<String>emptyList()));
+        }
+        return pageReply(roomHistory.page(cursor, Math.min(count, MAX_PAGE_LINES)));
+    }
+
+    // Builds the reply to a search, a stream of at most count matching lines, oldest first
+    Message searchReply(String room, String query, int count) {
+        return Message.stream(searchIndex.search(room, query, Math.min(count, MAX_SEARCH_RESULTS)));
+    }
+
+    // A page is sent as a stream of strings. The first string is the cursor to request older lines with, or "0" if
+    // there is no older history, followed by the lines oldest first.
+    private static Message pageReply(RoomHistory.Page page) {
+        List<String> lines = new ArrayList<>(page.lines.size() + 1);
+        lines.add(page.hasMore ? Long.toString(page.cursor) : "0");
+        lines.addAll(page.lines);
+        return Message.stream(lines);
     }
 }
@@ -0,0 +1,114 @@
+package com.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+// Settings of a listener, so it can be started without anyone at the console:
+//
+//   Listener [--config <file>] [<host:port> <client-username@message-vpn> <client-password>]
+//
+// Every setting is a chat.* key, e.g. chat.history.capacity. A -D system property wins over the same key in the
+// properties file, which wins over the default. The broker is taken from the command line, or from chat.broker.host,
+// chat.broker.user (client-username@message-vpn) and chat.broker.password when no arguments follow the file.
+//
+// The welcome message is chat.welcome. Only a listener started without a file and without chat.welcome prompts for
+// it on the console, as it always did.
+final class ListenerConfig {
+
+    static final String USAGE = "Usage: Listener [--config <file>] <host:port> <client-username@message-vpn> "
+            + "<client-password>";
+
+    final String host;
+    final String username;
+    final String vpn;
+    final String password;
+
+    // Null when not configured
+    final String welcome;
+
+    // True when started without a configuration file, the listener then prompts and exits on enter
+    final boolean interactive;
+
+    private final Properties file;
+
+    private ListenerConfig(Properties file, boolean interactive, String host, String user, String password) {
+        this.file = file;
+        this.interactive = interactive;
+        if (host == null || user == null || password == null || user.split("@").length != 2) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        if (user.split("@")[0].isEmpty()) {
+            throw new IllegalArgumentException("No client-username entered");
+        }
+        if (user.split("@")[1].isEmpty()) {
+            throw new IllegalArgumentException("No message-vpn entered");
+        }
+        this.host = host;
+        this.username = user.split("@")[0];
+        this.vpn = user.split("@")[1];
+        this.password = password;
+        this.welcome = get("chat.welcome", null);
+    }
+
+    // Throws an IllegalArgumentException with a message for the user if the arguments or settings are invalid
+    static ListenerConfig load(String[] args) throws IOException {
+        Properties file = new Properties();
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--config")) {
+            try (InputStream in = Files.newInputStream(Paths.get(args[1]))) {
+                file.load(in);
+            }
+            first = 2;
+        } else if (args.length >= 1 && args[0].equals("--config")) {
+            throw new IllegalArgumentException(USAGE);
+        }
+
+        boolean interactive = first == 0;
+        int remaining = args.length - first;
+        if (remaining == 3) {
+            return new ListenerConfig(file, interactive, args[first], args[first + 1], args[first + 2]);
+        }
+        if (remaining != 0) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        return new ListenerConfig(file, interactive, value(file, "chat.broker.host"), value(file, "chat.broker.user"),
+                value(file, "chat.broker.password"));
+    }
+
+    String get(String key, String defaultValue) {
+        String value = value(file, key);
+        return value == null ? defaultValue : value;
+    }
+
+    int getInt(String key, int defaultValue) {
+        long value = getLong(key, defaultValue);
+        if (value != (int) value) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + value);
+        }
+        return (int) value;
+    }
+
+    long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + value);
+        }
+    }
+
+    // The system property, else the file's, null if neither is set or blank
+    private static String value(Properties file, String key) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = file.getProperty(key);
+        }
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+}
@@ -0,0 +1,329 @@
+package com.chat;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Counters and histograms describing what the listener is doing. Recording is lock-free and cheap enough for the
+// ingestion path. The metrics can be read over JMX and printed as a periodic one-line snapshot, replacing the
+// console output the listener used to print for every join, leave and producer acknowledgement.
+class ListenerMetrics implements ListenerMetricsMXBean {
+
+    // Number of busiest rooms listed in each snapshot
+    private static final int SNAPSHOT_TOP_ROOMS = 5;
+
+    private final MessageHistory messageHistory;
+    private final SearchIndex searchIndex;
+
+    private final LongAdder ingested = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> ingestedPerRoom = new ConcurrentHashMap<>();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder leaves = new LongAdder();
+    private final LongAdder greetings = new LongAdder();
+    private final LongAdder replyErrors = new LongAdder();
+    private final LongAdder producerErrors = new LongAdder();
+    private final LongAdder malformedMessages = new LongAdder();
+
+    // Overload: room messages that waited for room in a full ingest stage, requests answered with a retry because
+    // the reply stage was full, and greetings skipped
+    private final LongAdder ingestDelayed = new LongAdder();
+    private final LongAdder repliesDropped = new LongAdder();
+    private final LongAdder greetingsShed = new LongAdder();
+
+    // Current backlogs of the listener's stages
+    private volatile IntSupplier ingestBacklog = () -> 0;
+    private volatile IntSupplier replyBacklog = () -> 0;
+
+    // Microseconds from receiving a history request to handing the reply to the transport
+    private final Histogram replyLatency = new Histogram();
+
+    // Approximate reply size in bytes, counting one byte per character of the lines sent
+    private final Histogram replyPayload = new Histogram();
+
+    private ScheduledExecutorService reporter;
+
+    // Per-room counts at the previous snapshot, only touched by the reporter thread
+    private final Map<String, Long> previousPerRoom = new HashMap<>();
+    private long previousIngested;
+    private long previousSnapshotNanos = System.nanoTime();
+
+    ListenerMetrics(MessageHistory messageHistory, SearchIndex searchIndex) {
+        this.messageHistory = messageHistory;
+        this.searchIndex = searchIndex;
+    }
+
+    void messageIngested(String room) {
+        ingested.increment();
+        LongAdder counter = ingestedPerRoom.get(room);
+        if (counter == null) {
+            counter = ingestedPerRoom.computeIfAbsent(room, r -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    void joined() {
+        joins.increment();
+    }
+
+    void left() {
+        leaves.increment();
+    }
+
+    void greeted() {
+        greetings.increment();
+    }
+
+    void replySent(long receivedNanos, Message reply) {
+        replyLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - receivedNanos));
+        replyPayload.record(payloadSize(reply));
+    }
+
+    void replyFailed() {
+        replyErrors.increment();
+    }
+
+    void producerError() {
+        producerErrors.increment();
+    }
+
+    void malformedMessage() {
+        malformedMessages.increment();
+    }
+
+    void ingestDelayed() {
+        ingestDelayed.increment();
+    }
+
+    void replyDropped() {
+        repliesDropped.increment();
+    }
+
+    void greetingShed() {
+        greetingsShed.increment();
+    }
+
+    void watchBacklog(IntSupplier ingest, IntSupplier reply) {
+        ingestBacklog = ingest;
+        replyBacklog = reply;
+    }
+
+    // Registers the metrics with the platform MBean server
+    void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.chat:type=Listener"));
+    }
+
+    // Prints a snapshot every intervalSeconds, does nothing for a non-positive interval
+    synchronized void startReporting(long intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("listener-metrics"));
+        reporter.scheduleAtFixedRate(() -> System.out.println(snapshot()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdown();
+            reporter = null;
+        }
+    }
+
+    // One line summary with rates since the previous snapshot
+    synchronized String snapshot() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - previousSnapshotNanos) / 1e9);
+        long total = ingested.sum();
+
+        // Busiest rooms over the interval
+        List<Map.Entry<String, Long>> deltas = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> entry : ingestedPerRoom.entrySet()) {
+            long count = entry.getValue().sum();
+            Long previous = previousPerRoom.put(entry.getKey(), count);
+            long delta = count - (previous == null ? 0 : previous);
+            if (delta > 0) {
+                deltas.add(new AbstractMap.SimpleEntry<>(entry.getKey(), delta));
+            }
+        }
+        deltas.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        StringBuilder rooms = new StringBuilder();
+        for (int i = 0; i < Math.min(SNAPSHOT_TOP_ROOMS, deltas.size()); i++) {
+            rooms.append(i == 0 ? "" : ", ").append(deltas.get(i).getKey())
+                    .append(String.format("=%.1f/s", deltas.get(i).getValue() / seconds));
+        }
+
+        String line = String.format("[metrics] ingested=%d (%.1f msg/s) rooms=%d cold=%d joins=%d leaves=%d " +
+                        "greetings=%d replies=%d reply-latency-us p50=%d p99=%d max=%d reply-bytes p99=%d " +
+                        "errors reply=%d producer=%d malformed=%d persist=%d backlog ingest=%d reply=%d " +
+                        "overload ingest-delayed=%d replies-dropped=%d greetings-shed=%d " +
+                        "store~%dKB (search index~%dKB) busiest: %s",
+                total, (total - previousIngested) / seconds, getRoomCount(), getColdRoomCount(), joins.sum(),
+                leaves.sum(), greetings.sum(), replyLatency.count(), replyLatency.percentile(50),
+                replyLatency.percentile(99), replyLatency.max(), replyPayload.percentile(99), replyErrors.sum(),
+                producerErrors.sum(), malformedMessages.sum(), getPersistErrors(), getIngestBacklog(),
+                getReplyBacklog(), ingestDelayed.sum(), repliesDropped.sum(), greetingsShed.sum(),
+                getStoreEstimatedBytes() / 1024, getSearchIndexEstimatedBytes() / 1024,
+                rooms.length() == 0 ? "-" : rooms);
+
+        previousIngested = total;
+        previousSnapshotNanos = now;
+        return line;
+    }
+
+    private static long payloadSize(Message message) {
+        if (message.isText()) {
+            return message.getText().length();
+        } else if (message.isBytes()) {
+            return message.getBytes().length;
+        }
+
+        long size = 0;
+        for (String line : message.getStream()) {
+            size += line.length();
+        }
+        return size;
+    }
+
+    @Override
+    public long getMessagesIngested() {
+        return ingested.sum();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesIngestedPerRoom() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : ingestedPerRoom.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public int getRoomCount() {
+        return messageHistory.roomCount();
+    }
+
+    @Override
+    public long getJoins() {
+        return joins.sum();
+    }
+
+    @Override
+    public long getLeaves() {
+        return leaves.sum();
+    }
+
+    @Override
+    public long getGreetings() {
+        return greetings.sum();
+    }
+
+    @Override
+    public long getHistoryReplies() {
+        return replyLatency.count();
+    }
+
+    @Override
+    public long getHistoryReplyLatencyP50Micros() {
+        return replyLatency.percentile(50);
+    }
+
+    @Override
+    public long getHistoryReplyLatencyP99Micros() {
+        return replyLatency.percentile(99);
+    }
+
+    @Override
+    public long getHistoryReplyLatencyP999Micros() {
+        return replyLatency.percentile(99.9);
+    }
+
+    @Override
+    public long getHistoryReplyLatencyMaxMicros() {
+        return replyLatency.max();
+    }
+
+    @Override
+    public long getReplyPayloadP50Bytes() {
+        return replyPayload.percentile(50);
+    }
+
+    @Override
+    public long getReplyPayloadP99Bytes() {
+        return replyPayload.percentile(99);
+    }
+
+    @Override
+    public long getReplyPayloadMaxBytes() {
+        return replyPayload.max();
+    }
+
+    @Override
+    public long getReplyErrors() {
+        return replyErrors.sum();
+    }
+
+    @Override
+    public long getProducerErrors() {
+        return producerErrors.sum();
+    }
+
+    @Override
+    public long getMalformedMessages() {
+        return malformedMessages.sum();
+    }
+
+    @Override
+    public long getPersistErrors() {
+        return messageHistory.persistErrors();
+    }
+
+    @Override
+    public long getStoreEstimatedBytes() {
+        return messageHistory.estimatedBytes() + searchIndex.estimatedBytes();
+    }
+
+    @Override
+    public long getSearchIndexEstimatedBytes() {
+        return searchIndex.estimatedBytes();
+    }
+
+    @Override
+    public long getIngestDelayed() {
+        return ingestDelayed.sum();
+    }
+
+    @Override
+    public long getRepliesDropped() {
+        return repliesDropped.sum();
+    }
+
+    @Override
+    public long getGreetingsShed() {
+        return greetingsShed.sum();
+    }
+
+    @Override
+    public int getIngestBacklog() {
+        return ingestBacklog.getAsInt();
+    }
+
+    @Override
+    public int getReplyBacklog() {
+        return replyBacklog.getAsInt();
+    }
+
+    @Override
+    public int getColdRoomCount() {
+        return messageHistory.coldRoomCount();
+    }
+}
@@ -0,0 +1,60 @@
+package com.chat;
+
+import java.util.Map;
+
+// Listener metrics exposed over JMX as com.chat:type=Listener
+public interface ListenerMetricsMXBean {
+
+    long getMessagesIngested();
+
+    Map<String, Long> getMessagesIngestedPerRoom();
+
+    int getRoomCount();
+
+    long getJoins();
+
+    long getLeaves();
+
+    long getGreetings();
+
+    long getHistoryReplies();
+
+    long getHistoryReplyLatencyP50Micros();
+
+    long getHistoryReplyLatencyP99Micros();
+
+    long getHistoryReplyLatencyP999Micros();
+
+    long getHistoryReplyLatencyMaxMicros();
+
+    long getReplyPayloadP50Bytes();
+
+    long getReplyPayloadP99Bytes();
+
+    long getReplyPayloadMaxBytes();
+
+    long getReplyErrors();
+
+    long getProducerErrors();
+
+    long getMalformedMessages();
+
+    long getPersistErrors();
+
+    long getIngestDelayed();
+
+    long getRepliesDropped();
+
+    long getGreetingsShed();
+
+    int getIngestBacklog();
+
+    int getReplyBacklog();
+
+    // History and search index together
+    long getStoreEstimatedBytes();
+
+    long getSearchIndexEstimatedBytes();
+
+    int getColdRoomCount();
+}
@@ -0,0 +1,364 @@
+package com.chat;
+
+import com.solacesystems.jcsmp.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator. Simulates many chat users that join rooms through the listener's heartbeat request/reply,
+// chat at a fixed rate, leave and join another room, and reports end-to-end publish-to-receive latency and join reply
+// latency percentiles. Without arguments it drives an in-process broker and listener, with the usual broker arguments
+// it drives a listener connected to that broker.
+//
+// Users are not threads, they are small state machines. Chat ticks run on a scheduler with one thread per core and
+// joins, which block on the listener's reply, run on a separate pool, so thousands of users need a few dozen threads.
+// Users share a limited number of sessions, a session subscribes to a room while at least one of its users is in it.
+public class LoadGenerator {
+
+    private static final String USER_PREFIX = "load-";
+
+    private final int users;
+    private final int rooms;
+    private final long chatPeriodNanos;
+    private final long stayNanos;
+
+    private final Session[] sessions;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService joinPool;
+    private volatile boolean running;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder joinTimeouts = new LongAdder();
+    private final LongAdder joinsShed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    // Microseconds from publishing a chat line to a session receiving it, and from a join request to its reply. Joins
+    // the listener shed are counted apart and not timed, their fast RETRY would make an overloaded listener look
+    // quicker.
+    private final Histogram deliveryLatency = new Histogram();
+    private final Histogram joinLatency = new Histogram();
+
+    private long startNanos;
+    private long previousReportNanos;
+    private long previousSent;
+    private long previousReceived;
+
+    // users simulated users spread over the transports, each chatting ratePerUser times a second in one of rooms rooms
+    // and moving to another room every staySeconds
+    LoadGenerator(Transport[] transports, int users, int rooms, double ratePerUser, double staySeconds,
+                  int joinThreads, int maxBatch, long maxLatencyMillis) {
+        this.users = users;
+        this.rooms = Math.max(1, rooms);
+        this.chatPeriodNanos = Math.max(1, (long) (1e9 / ratePerUser));
+        this.stayNanos = (long) (staySeconds * 1e9);
+
+        scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+                new DaemonThreadFactory("load-scheduler"));
+        joinPool = Executors.newFixedThreadPool(Math.max(1, joinThreads), new DaemonThreadFactory("load-join"));
+
+        sessions = new Session[transports.length];
+        for (int i = 0; i < transports.length; i++) {
+            sessions[i] = new Session(transports[i],
+                    new BatchingPublisher(transports[i], maxBatch, maxLatencyMillis, scheduler));
+        }
+    }
+
+    // Connects the sessions and lets the users join, spread evenly over rampSeconds
+    void start(double rampSeconds) throws TransportException {
+        for (Session session : sessions) {
+            session.transport.connect(this::onMessage);
+        }
+
+        running = true;
+        startNanos = System.nanoTime();
+        previousReportNanos = startNanos;
+        long rampNanos = (long) (rampSeconds * 1e9);
+        for (int i = 0; i < users; i++) {
+            final User user = new User(USER_PREFIX + i, sessions[i % sessions.length]);
+            scheduler.schedule(() -> joinPool.execute(user::join), rampNanos * i / Math.max(1, users),
+                    TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void startReporting(long intervalSeconds) {
+        scheduler.scheduleAtFixedRate(() -> System.out.println(report()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    // Stops the users, gives in-flight messages a moment to arrive and closes the sessions
+    void stop() {
+        running = false;
+        scheduler.shutdownNow();
+        joinPool.shutdownNow();
+        try {
+            joinPool.awaitTermination(5, TimeUnit.SECONDS);
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Session session : sessions) {
+            session.publisher.close();
+            session.transport.close();
+        }
+    }
+
+    // One line with the totals and rates since the previous report
+    synchronized String report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - previousReportNanos) / 1e9);
+        long sentTotal = sent.sum();
+        long receivedTotal = received.sum();
+
+        String line = String.format("[load] %ds users=%d joins=%d timeouts=%d shed=%d errors=%d sent=%d (%.0f/s) " +
+                        "received=%d (%.0f/s) delivery-us p50=%d p99=%d p99.9=%d max=%d join-us p50=%d p99=%d max=%d",
+                (now - startNanos) / 1_000_000_000L, users, joins.sum(), joinTimeouts.sum(), joinsShed.sum(),
+                errors.sum(), sentTotal, (sentTotal - previousSent) / seconds, receivedTotal,
+                (receivedTotal - previousReceived) / seconds, deliveryLatency.percentile(50),
+                deliveryLatency.percentile(99), deliveryLatency.percentile(99.9), deliveryLatency.max(),
+                joinLatency.percentile(50), joinLatency.percentile(99), joinLatency.max());
+
+        previousReportNanos = now;
+        previousSent = sentTotal;
+        previousReceived = receivedTotal;
+        return line;
+    }
+
+    // Chat lines carry the System.nanoTime() they were published at as their body
+    private void onMessage(Message message) {
+        if (!message.isBytes() || EnvelopeCodec.type(message.getBytes()) != Envelope.CHAT) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        try {
+            Envelope envelope = EnvelopeCodec.local().decode(message.getBytes(), new Envelope());
+            if (envelope.sender.startsWith(USER_PREFIX)) {
+                deliveryLatency.record((now - Long.parseLong(envelope.body)) / 1000);
+                received.increment();
+            }
+        } catch (IllegalArgumentException e) {
+            // Someone else chatting in a load test room, NumberFormatException included
+        }
+    }
+
+    // A connection to the broker shared by several users
+    private static final class Session {
+        private final Transport transport;
+        private final BatchingPublisher publisher;
+
+        // Number of this session's users in each room, guarded by itself
+        private final Map<String, Integer> members = new HashMap<>();
+
+        Session(Transport transport, BatchingPublisher publisher) {
+            this.transport = transport;
+            this.publisher = publisher;
+        }
+
+        void enter(String room) throws TransportException {
+            synchronized (members) {
+                if (members.merge(room, 1, Integer::sum) == 1) {
+                    transport.subscribe(room);
+                }
+            }
+        }
+
+        void exit(String room) throws TransportException {
+            synchronized (members) {
+                Integer count = members.get(room);
+                if (count == null) {
+                    return;
+                }
+                if (count == 1) {
+                    members.remove(room);
+                    transport.unsubscribe(room);
+                } else {
+                    members.put(room, count - 1);
+                }
+            }
+        }
+    }
+
+    // A simulated user. join runs on the join pool and chat on the scheduler, a user only ever has one of them pending,
+    // so its fields are only used by one thread at a time.
+    private final class User {
+        private final String name;
+        private final Session session;
+        private final Envelope outgoing = new Envelope();
+
+        // Tells the user apart from the same name simulated by another load generator
+        private final String client = UUID.randomUUID().toString();
+
+        private String roomName;
+        private String room;
+        private long leaveAtNanos;
+        private long nextChatNanos;
+
+        User(String name, Session session) {
+            this.name = name;
+            this.session = session;
+        }
+
+        void join() {
+            if (!running) {
+                return;
+            }
+
+            roomName = "load" + ThreadLocalRandom.current().nextInt(rooms);
+            room = Listener.ROOM_PREFIX + roomName;
+            try {
+                // Requests of the users sharing a session run concurrently, each on its own requestor, so the
+                // latency is the round trip to the listener and not time spent behind other users' joins
+                long start = System.nanoTime();
+                try {
+                    Message reply = session.transport.request(Listener.HEARTBEAT_TOPIC,
+                            Message.envelope(outgoing.set(Envelope.JOIN, roomName, name, "").from(client)), 2000);
+                    long micros = (System.nanoTime() - start) / 1000;
+
+                    // An overloaded listener answered without history, the user joins anyway
+                    if (reply.isText() && reply.getText().equals(Listener.RETRY)) {
+                        joinsShed.increment();
+                    } else {
+                        joinLatency.record(micros);
+                        joins.increment();
+                    }
+                } catch (TransportTimeoutException e) {
+                    // Keep chatting, like the interactive client does when the listener is missing
+                    joinTimeouts.increment();
+                }
+
+                session.enter(room);
+                session.publisher.publish(room, Message.envelope(
+                        outgoing.set(Envelope.NOTICE, roomName, name, name + " has joined the room.")));
+            } catch (TransportException e) {
+                errors.increment();
+            }
+
+            // Start at a random point of the first period so the users do not chat in lockstep
+            long now = System.nanoTime();
+            leaveAtNanos = now + stayNanos;
+            nextChatNanos = now + ThreadLocalRandom.current().nextLong(chatPeriodNanos);
+            scheduleChat();
+        }
+
+        void chat() {
+            if (!running) {
+                return;
+            }
+
+            try {
+                if (System.nanoTime() - leaveAtNanos >= 0) {
+                    leave();
+                    joinPool.execute(this::join);
+                    return;
+                }
+
+                session.publisher.publish(room, Message.envelope(
+                        outgoing.set(Envelope.CHAT, roomName, name, Long.toString(System.nanoTime()))));
+                sent.increment();
+            } catch (TransportException e) {
+                errors.increment();
+            } catch (RejectedExecutionException ignored) {
+                // Stopping
+                return;
+            }
+
+            // Fixed rate, a late tick does not push the following ones back
+            nextChatNanos += chatPeriodNanos;
+            scheduleChat();
+        }
+
+        private void scheduleChat() {
+            try {
+                scheduler.schedule(this::chat, nextChatNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // Stopping
+            }
+        }
+
+        private void leave() throws TransportException {
+            session.publisher.publish(Listener.HEARTBEAT_TOPIC,
+                    Message.envelope(outgoing.set(Envelope.LEAVE, roomName, name, "").from(client)));
+            session.exit(room);
+            session.publisher.publish(room, Message.envelope(
+                    outgoing.set(Envelope.NOTICE, roomName, name, name + " has left the room.")));
+        }
+    }
+
+    // Load generator, runs in-process without arguments or against a broker with the same arguments as the client.
+    // The load is configured with -Dchat.load.users, .rooms, .rate (chat lines per user per second), .stay (seconds
+    // in a room), .ramp (seconds until every user has joined), .duration (seconds), .sessions (broker connections,
+    // every user gets its own in-process one by default), .joinThreads and .report (seconds between reports).
+    public static void main(String[] args) throws TransportException {
+        if (args.length != 0 && (args.length != 3 || args[1].split("@").length != 2)) {
+            System.out.println("Usage: LoadGenerator [<host:port> <client-username@message-vpn> <client-password>]");
+            System.out.println();
+            System.exit(-1);
+        }
+
+        int users = Integer.getInteger("chat.load.users", 1000);
+        long duration = Long.getLong("chat.load.duration", 60);
+
+        InMemoryBroker broker = null;
+        Listener listener = null;
+        Transport[] transports;
+        if (args.length == 0) {
+            // Stand-in broker and listener in this process
+            broker = new InMemoryBroker();
+            listener = new Listener(broker.newTransport(), new MessageHistory(
+                    Integer.getInteger("chat.history.capacity", MessageHistory.DEFAULT_CAPACITY)), "Load test",
+                    Integer.getInteger("chat.reply.threads", Listener.DEFAULT_REPLY_THREADS),
+                    Integer.getInteger("chat.reply.queue", Listener.DEFAULT_REPLY_QUEUE));
+            listener.start();
+
+            transports = new Transport[Integer.getInteger("chat.load.sessions", users)];
+            for (int i = 0; i < transports.length; i++) {
+                transports[i] = broker.newTransport();
+            }
+        } else {
+            final JCSMPProperties properties = new JCSMPProperties();
+            properties.setProperty(JCSMPProperties.HOST, args[0]);     // host:port
+            properties.setProperty(JCSMPProperties.USERNAME, args[1].split("@")[0]); // client-username
+            properties.setProperty(JCSMPProperties.PASSWORD, args[2]); // client-password
+            properties.setProperty(JCSMPProperties.VPN_NAME, args[1].split("@")[1]); // message-vpn
+
+            transports = new Transport[Integer.getInteger("chat.load.sessions", 8)];
+            for (int i = 0; i < transports.length; i++) {
+                transports[i] = new JcsmpTransport(properties);
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(transports, users,
+                Integer.getInteger("chat.load.rooms", 100),
+                Double.parseDouble(System.getProperty("chat.load.rate", "1")),
+                Double.parseDouble(System.getProperty("chat.load.stay", "30")),
+                Integer.getInteger("chat.load.joinThreads", 64),
+                Integer.getInteger("chat.publish.batch", BatchingPublisher.DEFAULT_MAX_BATCH),
+                Long.getLong("chat.publish.latency", 0));
+
+        System.out.printf("Starting %d users on %d sessions for %d seconds...%n", users, transports.length, duration);
+        generator.start(Double.parseDouble(System.getProperty("chat.load.ramp", "5")));
+        generator.startReporting(Long.getLong("chat.load.report", 5));
+
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        generator.stop();
+        System.out.println(generator.report());
+
+        if (listener != null) {
+            listener.close();
+        }
+        if (broker != null) {
+            broker.shutdown();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Transport-neutral chat message. A message either carries a single string (the equivalent of a JCSMP TextMessage),
+// a list of strings (the equivalent of a StreamMessage wrapping an SDTStream of strings) or raw bytes holding an
+// encoded Envelope (the equivalent of a BytesMessage). Messages handed to a
+// MessageHandler also carry the topic they were published on and, for requests, an opaque reply handle that the
+// receiving Transport uses to route the reply back to the requestor.
+final class Message {
+
+    private final String text;
+    private final List<String> stream;
+    private final byte[] bytes;
+    private final String destination;
+    private final Object replyTo;
+
+    private Message(String text, List<String> stream, byte[] bytes, String destination, Object replyTo) {
+        this.text = text;
+        this.stream = stream;
+        this.bytes = bytes;
+        this.destination = destination;
+        this.replyTo = replyTo;
+    }
+
+    // Creates an outbound text message
+    static Message text(String text) {
+        return new Message(text, null, null, null, null);
+    }
+
+    // Creates an outbound message holding a stream of strings
+    static Message stream(List<String> lines) {
+        return new Message(null, Collections.unmodifiableList(new ArrayList<>(lines)), null, null, null);
+    }
+
+    // Creates an outbound binary message. The array is not copied and must not be modified afterwards.
+    static Message bytes(byte[] bytes) {
+        return new Message(null, null, bytes, null, null);
+    }
+
+    // Shorthand for a binary message holding the encoded envelope
+    static Message envelope(Envelope envelope) {
+        return bytes(EnvelopeCodec.local().encode(envelope));
+    }
+
+    // Used by transports to stamp a message with where it was delivered from and how to reply to it
+    Message delivered(String destination, Object replyTo) {
+        return new Message(text, stream, bytes, destination, replyTo);
+    }
+
+    boolean isText() {
+        return text != null;
+    }
+
+    boolean isStream() {
+        return stream != null;
+    }
+
+    boolean isBytes() {
+        return bytes != null;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    List<String> getStream() {
+        return stream;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    // Topic the message was published on, null for messages that have not been delivered yet
+    String getDestination() {
+        return destination;
+    }
+
+    // True if the sender is waiting for a reply
+    boolean isRequest() {
+        return replyTo != null;
+    }
+
+    Object getReplyTo() {
+        return replyTo;
+    }
+}
@@ -0,0 +1,13 @@
+package com.chat;
+
+// Callback invoked by a Transport for every message delivered on one of its subscriptions. Depending on the
+// transport this may be called from one or several dispatcher threads.
+interface MessageHandler {
+
+    void onMessage(Message message);
+
+    // Called when the broker reports that a message we published could not be delivered
+    default void onPublishError(String messageId, Exception e) {
+        System.out.printf("Producer received error for msg: %s - %s%n", messageId, e);
+    }
+}
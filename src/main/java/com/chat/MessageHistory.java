@@ -0,0 +1,286 @@
+package com.chat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Stores the recent chat history of every room seen by the listener. Each room is backed by a fixed-capacity
+// RoomHistory ring buffer, so the store only grows with the number of rooms and never with the number of messages.
+//
+// The store is safe to use from several consumer threads at once. Rooms are registered in a concurrent map and each
+// room guards its own buffer, so appends to different rooms never block each other.
+//
+// When created with a HistoryLog every message is also written to the durable log, and the rooms stored in the log
+// are restored when the store is created.
+//
+// Rooms are tiered: recently used rooms are hot and hold their lines as Strings, while a periodic sweep compresses
+// rooms that have been idle for a while, and the least recently used rooms beyond a memory budget, into a cold block.
+// A cold room is rebuilt on its next access, typically a join, so tiering is invisible to callers.
+//
+// A store without a log can instead be written to a HistorySnapshot periodically and on close, and restored from it
+// on startup.
+class MessageHistory {
+
+    // Default number of lines retained per room, can be overridden with -Dchat.history.capacity=<lines>
+    static final int DEFAULT_CAPACITY = 100;
+
+    private final int capacity;
+    private final ConcurrentMap<String, RoomHistory> rooms = new ConcurrentHashMap<>();
+
+    // Optional durable log, null when history is only kept in memory
+    private final HistoryLog log;
+
+    // Rooms and messages that could not be written to the log
+    private final LongAdder persistErrors = new LongAdder();
+    private final RateLimitedLog persistErrorLog = new RateLimitedLog();
+
+    // Runs the sweeps moving rooms to the cold tier, null until tiering is started
+    private ScheduledExecutorService sweeper;
+
+    // Told the name of every room a sweep made cold, so per-room state kept elsewhere can shrink as well
+    private volatile Consumer<String> coldListener = room -> { };
+
+    // Writes the periodic snapshots, null unless snapshots are started
+    private ScheduledExecutorService snapshotter;
+    private Path snapshotFile;
+
+    MessageHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.log = null;
+    }
+
+    // Creates a persistent store, restoring the newest lines of every room found in the log
+    MessageHistory(int capacity, HistoryLog log) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        log.replay(capacity, (room, total, lines) -> rooms.put(room, new RoomHistory(capacity, total, lines)));
+        this.log = log;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    // Returns the history of the room, or null if the room has not been seen yet
+    RoomHistory get(String room) {
+        return rooms.get(room);
+    }
+
+    // Returns the history of the room, atomically creating an empty one if the room has not been seen yet
+    RoomHistory room(String room) {
+        // Plain lookup first, computeIfAbsent locks the map bin even when the room already exists
+        RoomHistory history = rooms.get(room);
+        if (history == null) {
+            history = rooms.computeIfAbsent(room, this::createRoom);
+        }
+        return history;
+    }
+
+    private RoomHistory createRoom(String room) {
+        // Record the room in the log so it survives a restart even before its first message
+        if (log != null) {
+            try {
+                log.register(room);
+            } catch (IOException e) {
+                persistErrors.increment();
+                persistErrorLog.log("Unable to persist room " + room, e);
+            }
+        }
+        return new RoomHistory(capacity);
+    }
+
+    // Registers a room rebuilt from a snapshot, replacing any room of the same name. Rooms restored this way are not
+    // recorded in the durable log.
+    void restore(String room, RoomHistory history) {
+        rooms.put(room, history);
+    }
+
+    // Live view of the names of all known rooms
+    Set<String> roomNames() {
+        return rooms.keySet();
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+
+    // Number of rooms and messages the durable log failed to store
+    long persistErrors() {
+        return persistErrors.sum();
+    }
+
+    // Number of rooms currently held compressed, O(rooms)
+    int coldRoomCount() {
+        int cold = 0;
+        for (RoomHistory history : rooms.values()) {
+            if (history.isCold()) {
+                cold++;
+            }
+        }
+        return cold;
+    }
+
+    // Sweeps every intervalSeconds, compressing rooms idle for idleSeconds and then the least recently used hot rooms
+    // until the hot rooms fit in maxHotBytes (0 for no budget). Does nothing for a non-positive interval.
+    synchronized void startTiering(long intervalSeconds, long idleSeconds, long maxHotBytes) {
+        if (intervalSeconds <= 0 || sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("history-sweeper"));
+        sweeper.scheduleWithFixedDelay(() -> sweep(TimeUnit.SECONDS.toNanos(idleSeconds), maxHotBytes),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void onCold(Consumer<String> listener) {
+        coldListener = listener;
+    }
+
+    synchronized void stopTiering() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+    }
+
+    // Moves idle rooms, then the least recently used ones over the budget, to the cold tier. Returns the number of
+    // rooms compressed.
+    int sweep(long idleNanos, long maxHotBytes) {
+        long now = System.nanoTime();
+        int compressed = 0;
+        long hotBytes = 0;
+        List<Map.Entry<String, RoomHistory>> hot = new ArrayList<>();
+        Consumer<String> listener = coldListener;
+
+        for (Map.Entry<String, RoomHistory> entry : rooms.entrySet()) {
+            RoomHistory history = entry.getValue();
+            if (history.isCold()) {
+                continue;
+            }
+            if (now - history.lastAccessNanos() >= idleNanos && history.compress()) {
+                listener.accept(entry.getKey());
+                compressed++;
+            } else {
+                hot.add(entry);
+                hotBytes += history.estimatedBytes();
+            }
+        }
+
+        if (maxHotBytes > 0 && hotBytes > maxHotBytes) {
+            hot.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccessNanos()));
+            for (Map.Entry<String, RoomHistory> entry : hot) {
+                if (hotBytes <= maxHotBytes) {
+                    break;
+                }
+                long bytes = entry.getValue().estimatedBytes();
+                if (entry.getValue().compress()) {
+                    listener.accept(entry.getKey());
+                    hotBytes -= bytes;
+                    compressed++;
+                }
+            }
+        }
+        return compressed;
+    }
+
+    // Writes the whole store to the file every intervalSeconds and once more on close. A non-positive interval only
+    // writes it on close.
+    synchronized void startSnapshots(Path file, long intervalSeconds) {
+        if (snapshotFile != null) {
+            return;
+        }
+        snapshotFile = file;
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("history-snapshot"));
+        snapshotter.scheduleWithFixedDelay(this::writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    synchronized void stopSnapshots() {
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+            try {
+                // Let a snapshot in progress finish before the final one replaces it
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            snapshotter = null;
+        }
+    }
+
+    // Writes a snapshot now if snapshots are started, returns false if writing failed
+    boolean writeSnapshot() {
+        Path file = snapshotFile;
+        if (file == null) {
+            return true;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            int written = HistorySnapshot.write(this, file);
+            System.out.printf("Snapshot of %d rooms written to %s in %d ms%n", written, file,
+                    System.currentTimeMillis() - start);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to write the history snapshot " + file);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Rough estimate of the heap used by the stored history, O(rooms)
+    long estimatedBytes() {
+        long bytes = 0;
+        for (RoomHistory history : rooms.values()) {
+            bytes += history.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    void append(String room, String line) {
+        RoomHistory history = room(room);
+        if (log == null) {
+            history.append(line);
+            return;
+        }
+
+        // Holding the room lock keeps the log in the same order as the in-memory history
+        synchronized (history) {
+            history.append(line);
+            try {
+                log.append(room, line);
+            } catch (IOException e) {
+                persistErrors.increment();
+                persistErrorLog.log("Unable to persist message for " + room, e);
+            }
+        }
+    }
+
+    // Returns at most the last k lines of the room in chronological order, or an empty list for unknown rooms
+    List<String> last(String room, int k) {
+        RoomHistory history = rooms.get(room);
+        return history == null ? Collections.<String>emptyList() : history.last(k);
+    }
+
+    // Stops tiering, writes a last snapshot if snapshots are started, then flushes and closes the durable log, if any
+    void close() throws IOException {
+        stopTiering();
+        stopSnapshots();
+        writeSnapshot();
+        if (log != null) {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.chat;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Tracks who is in which room. Members join and leave through the heartbeat topic and ping it periodically while they
+// stay, a member that has not been seen for the expiry time is considered gone, e.g. a client that crashed.
+//
+// Changes are not announced one by one. Every room collects the joins and leaves since the last drain, a join
+// followed by a leave of the same member cancels out, and drain hands over the net change of every room that changed,
+// so the cost of announcing presence depends on the number of changes rather than on the number of members.
+//
+// Members are told apart by the id of their client, several members may share a name. Names are only kept for /who
+// and the announcements.
+//
+// Each room guards its own members, member counts are O(1).
+class PresenceTable {
+
+    // How often clients ping while in a room, and how long a silent member is kept
+    static final long PING_INTERVAL_SECONDS = 30;
+    static final long DEFAULT_EXPIRY_SECONDS = 3 * PING_INTERVAL_SECONDS;
+
+    private final ConcurrentMap<String, RoomPresence> rooms = new ConcurrentHashMap<>();
+
+    // Rooms with changes that have not been drained yet
+    private final Set<String> changedRooms = ConcurrentHashMap.newKeySet();
+
+    // Adds the member to the room or refreshes its last seen time and name. Returns true if the member was not in the
+    // room.
+    boolean seen(String room, String member, String name, long nowMillis) {
+        RoomPresence presence = rooms.get(room);
+        if (presence == null) {
+            presence = rooms.computeIfAbsent(room, r -> new RoomPresence());
+        }
+        if (presence.seen(member, name, nowMillis)) {
+            changedRooms.add(room);
+            return true;
+        }
+        return false;
+    }
+
+    // Returns true if the member was in the room
+    boolean leave(String room, String member) {
+        RoomPresence presence = rooms.get(room);
+        if (presence != null && presence.leave(member)) {
+            changedRooms.add(room);
+            return true;
+        }
+        return false;
+    }
+
+    int count(String room) {
+        RoomPresence presence = rooms.get(room);
+        return presence == null ? 0 : presence.count();
+    }
+
+    // Names of the room's members, sorted, a name shared by several members is listed once for each
+    List<String> members(String room) {
+        RoomPresence presence = rooms.get(room);
+        return presence == null ? Collections.<String>emptyList() : presence.members();
+    }
+
+    // Removes every member not seen since the given time, returns the number removed
+    int expire(long seenBeforeMillis) {
+        int expired = 0;
+        for (Map.Entry<String, RoomPresence> entry : rooms.entrySet()) {
+            int removed = entry.getValue().expire(seenBeforeMillis);
+            if (removed > 0) {
+                changedRooms.add(entry.getKey());
+                expired += removed;
+            }
+        }
+        return expired;
+    }
+
+    // Hands over and resets the net changes of every room that changed since the previous drain. Rooms whose changes
+    // cancelled out are left out.
+    List<Delta> drain() {
+        List<Delta> deltas = new ArrayList<>();
+        for (Iterator<String> it = changedRooms.iterator(); it.hasNext(); ) {
+            String room = it.next();
+            it.remove();
+            RoomPresence presence = rooms.get(room);
+            Delta delta = presence == null ? null : presence.drain(room);
+            if (delta != null) {
+                deltas.add(delta);
+            }
+        }
+        return deltas;
+    }
+
+    // Net change of a room's members since the previous drain, by name
+    static final class Delta {
+        final String room;
+        final List<String> joined;
+        final List<String> left;
+        final int count;
+
+        Delta(String room, List<String> joined, List<String> left, int count) {
+            this.room = room;
+            this.joined = joined;
+            this.left = left;
+            this.count = count;
+        }
+    }
+
+    private static final class Member {
+        String name;
+        long seenMillis;
+
+        Member(String name, long seenMillis) {
+            this.name = name;
+            this.seenMillis = seenMillis;
+        }
+    }
+
+    private static final class RoomPresence {
+        // Client id to the member
+        private final Map<String, Member> members = new HashMap<>();
+
+        // Pending changes by client id, true for a join and false for a leave, with the name to announce
+        private final Map<String, Boolean> changes = new LinkedHashMap<>();
+        private final Map<String, String> changedNames = new HashMap<>();
+
+        synchronized boolean seen(String member, String name, long nowMillis) {
+            Member known = members.get(member);
+            if (known != null) {
+                known.name = name;
+                known.seenMillis = nowMillis;
+                return false;
+            }
+            members.put(member, new Member(name, nowMillis));
+            change(member, name, true);
+            return true;
+        }
+
+        synchronized boolean leave(String member) {
+            Member known = members.remove(member);
+            if (known == null) {
+                return false;
+            }
+            change(member, known.name, false);
+            return true;
+        }
+
+        synchronized int count() {
+            return members.size();
+        }
+
+        synchronized List<String> members() {
+            List<String> names = new ArrayList<>(members.size());
+            for (Member member : members.values()) {
+                names.add(member.name);
+            }
+            Collections.sort(names);
+            return names;
+        }
+
+        synchronized int expire(long seenBeforeMillis) {
+            int removed = 0;
+            for (Iterator<Map.Entry<String, Member>> it = members.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Member> entry = it.next();
+                if (entry.getValue().seenMillis < seenBeforeMillis) {
+                    it.remove();
+                    change(entry.getKey(), entry.getValue().name, false);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        synchronized Delta drain(String room) {
+            if (changes.isEmpty()) {
+                return null;
+            }
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                (change.getValue() ? joined : left).add(changedNames.get(change.getKey()));
+            }
+            changes.clear();
+            changedNames.clear();
+            return new Delta(room, joined, left, members.size());
+        }
+
+        // A change opposite to a pending one undoes it
+        private void change(String member, String name, boolean joined) {
+            Boolean pending = changes.get(member);
+            if (pending != null && pending != joined) {
+                changes.remove(member);
+                changedNames.remove(member);
+            } else {
+                changes.put(member, joined);
+                changedNames.put(member, name);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Prints at most one error per interval and counts the ones it skips, so an error repeated for every message, e.g. a
+// full disk or a client sending garbage, neither floods the console nor slows down the path reporting it. The errors
+// themselves are counted by the metrics.
+final class RateLimitedLog {
+
+    static final long DEFAULT_INTERVAL_MILLIS = 10_000;
+
+    private final long intervalNanos;
+    private final AtomicLong nextNanos;
+    private final AtomicLong skipped = new AtomicLong();
+
+    RateLimitedLog() {
+        this(DEFAULT_INTERVAL_MILLIS);
+    }
+
+    RateLimitedLog(long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.nextNanos = new AtomicLong(System.nanoTime() - 1);
+    }
+
+    // Prints the message and the stack trace of the error, if any, unless something was printed within the interval
+    void log(String message, Throwable error) {
+        long now = System.nanoTime();
+        long next = nextNanos.get();
+        if (now - next < 0 || !nextNanos.compareAndSet(next, now + intervalNanos)) {
+            skipped.incrementAndGet();
+            return;
+        }
+
+        long skippedSince = skipped.getAndSet(0);
+        System.out.println(skippedSince == 0 ? message
+                : message + " (" + skippedSince + " similar errors not shown)");
+        if (error != null) {
+            error.printStackTrace();
+        }
+    }
+}
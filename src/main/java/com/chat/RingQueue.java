@@ -0,0 +1,78 @@
+package com.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for any number of producers and consumers, an array of slots with a sequence number per
+// slot (D. Vyukov's bounded MPMC queue). A producer claims a slot by advancing the tail when the slot's sequence says
+// it is free, a consumer claims it by advancing the head when the sequence says it is filled. Neither ever blocks,
+// offer fails when the queue is full and poll returns null when it is empty.
+final class RingQueue<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // The capacity is rounded up to a power of two
+    RingQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(slot, element);
+                    // Publishes the element to consumers
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // The slot still holds the element from one lap ago
+                return false;
+            }
+        }
+    }
+
+    E poll() {
+        while (true) {
+            long position = head.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(slot);
+                    elements.lazySet(slot, null);
+                    // Frees the slot for the producer one lap ahead
+                    sequences.set(slot, position + mask + 1);
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    // Approximate while producers and consumers are active
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,283 @@
+package com.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Fixed-capacity ring buffer holding the most recent lines of a single chat room. Once the buffer is full every
+// append overwrites the oldest line, so the memory used by a room stays constant no matter how long the listener
+// has been running.
+//
+// An idle room can be made cold: its lines are packed as UTF-8 and deflated into a single byte array and the ring is
+// released. Any later access transparently rebuilds the ring first.
+//
+// All access is synchronized on the room itself, which stripes locking per room: threads appending to different
+// rooms never contend with each other.
+class RoomHistory {
+
+    // Compression state is reused by every room compressed or rebuilt on the same thread
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final int capacity;
+
+    // Backing array, slot (sequence % capacity) holds the line with that sequence number. Null while the room is cold.
+    private String[] lines;
+
+    // Deflated lines of a cold room, oldest first, each one a Varint string. Null while hot.
+    private byte[] cold;
+    private int coldLength;
+
+    // System.nanoTime() of the last access, read without the lock by the store deciding which rooms to make cold
+    private volatile long lastAccessNanos = System.nanoTime();
+
+    // Total number of lines ever appended to this room. Doubles as the sequence number of the next line.
+    private long total;
+
+    // Number of lines retained, the newest ones. Below min(total, capacity) only for a room restored with fewer lines,
+    // e.g. from a snapshot written with a smaller capacity.
+    private int size;
+
+    // Rough estimate of the memory held by the retained lines
+    private long lineBytes;
+
+    RoomHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        lines = new String[capacity];
+    }
+
+    // Rebuilds a room from persisted state: the number of lines ever appended and the newest of them, oldest first
+    RoomHistory(int capacity, long total, List<String> newest) {
+        this(capacity);
+        int count = Math.min(newest.size(), capacity);
+        this.total = Math.max(total, count);
+        int first = newest.size() - count;
+        this.size = count;
+        for (int i = 0; i < count; i++) {
+            lines[(int) ((this.total - count + i) % capacity)] = newest.get(first + i);
+            lineBytes += estimateBytes(newest.get(first + i));
+        }
+    }
+
+    // Rebuilds a cold room from a snapshot, the block holds the newest count lines
+    RoomHistory(int capacity, long total, int count, byte[] cold, int coldLength) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        if (count < 0 || count > capacity || count > total) {
+            throw new IllegalArgumentException("Invalid line count " + count + " for a capacity of " + capacity);
+        }
+        this.capacity = capacity;
+        this.total = total;
+        this.size = count;
+        this.cold = cold;
+        this.coldLength = coldLength;
+    }
+
+    // O(1) append, evicting the oldest line when the buffer is full
+    synchronized void append(String line) {
+        hot();
+        int slot = (int) (total % capacity);
+        if (lines[slot] != null) {
+            lineBytes -= estimateBytes(lines[slot]);
+        }
+        lines[slot] = line;
+        lineBytes += estimateBytes(line);
+        total++;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    // Number of lines currently retained
+    synchronized int size() {
+        return size;
+    }
+
+    // Number of lines appended over the lifetime of the room, including the ones already evicted
+    synchronized long total() {
+        return total;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    synchronized boolean isCold() {
+        return cold != null;
+    }
+
+    long lastAccessNanos() {
+        return lastAccessNanos;
+    }
+
+    // Rough estimate of the heap used by this room: the slot array plus the retained strings, or the compressed
+    // block of a cold room
+    synchronized long estimatedBytes() {
+        return cold != null ? 16 + cold.length : 16 + 4L * capacity + lineBytes;
+    }
+
+    // String object, its char array header and two bytes per character
+    private static long estimateBytes(String line) {
+        return 40 + 2L * line.length();
+    }
+
+    // Returns at most the last k lines in chronological order. O(k).
+    synchronized List<String> last(int k) {
+        return page(total, k).lines;
+    }
+
+    // Returns at most count retained lines older than the line with sequence number `before`, oldest first. O(count).
+    synchronized Page page(long before, int count) {
+        hot();
+        long oldest = total - size();
+        long end = Math.min(Math.max(before, oldest), total);
+        long start = Math.max(oldest, end - Math.max(count, 0));
+
+        List<String> result = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            result.add(lines[(int) (seq % capacity)]);
+        }
+        return new Page(start, start > oldest, result);
+    }
+
+    // Packs the retained lines into a deflated block and releases the ring. Returns false if the room is empty or
+    // already cold.
+    synchronized boolean compress() {
+        int size = size();
+        if (cold != null || size == 0) {
+            return false;
+        }
+
+        // Oldest first, a varint length in front of every line
+        byte[] raw = new byte[(int) Math.min(Integer.MAX_VALUE - 8, lineBytes)];
+        int length = 0;
+        for (long seq = total - size; seq < total; seq++) {
+            byte[] utf8 = lines[(int) (seq % capacity)].getBytes(StandardCharsets.UTF_8);
+            if (raw.length - length < utf8.length + Varint.MAX_BYTES) {
+                raw = Arrays.copyOf(raw, Math.max(raw.length * 2, length + utf8.length + Varint.MAX_BYTES));
+            }
+            length = Varint.write(raw, length, utf8.length);
+            System.arraycopy(utf8, 0, raw, length, utf8.length);
+            length += utf8.length;
+        }
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        byte[] out = new byte[Math.max(64, length / 2)];
+        int outLength = 0;
+        while (!deflater.finished()) {
+            if (outLength == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            outLength += deflater.deflate(out, outLength, out.length - outLength);
+        }
+
+        cold = Arrays.copyOf(out, outLength);
+        coldLength = length;
+        lines = null;
+        lineBytes = 0;
+        return true;
+    }
+
+    // Marks the room as used and rebuilds the ring of a cold room
+    private void hot() {
+        lastAccessNanos = System.nanoTime();
+        if (cold == null) {
+            return;
+        }
+
+        List<String> unpacked = unpack(cold, coldLength, size());
+        lines = new String[capacity];
+        long seq = total - unpacked.size();
+        for (String line : unpacked) {
+            lines[(int) (seq++ % capacity)] = line;
+            lineBytes += estimateBytes(line);
+        }
+        cold = null;
+        coldLength = 0;
+    }
+
+    // Inflates a cold block holding count lines, see compress
+    static List<String> unpack(byte[] cold, int coldLength, int count) {
+        byte[] raw = new byte[coldLength];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(cold);
+        try {
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                length += inflater.inflate(raw, length, raw.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt cold history", e);
+        }
+
+        List<String> result = new ArrayList<>(count);
+        ByteBuffer packed = ByteBuffer.wrap(raw);
+        for (int i = 0; i < count; i++) {
+            result.add(Varint.readString(packed));
+        }
+        return result;
+    }
+
+    // Content of the room for a snapshot, read without making a cold room hot
+    synchronized Snapshot snapshot() {
+        if (cold != null) {
+            return new Snapshot(total, size(), null, cold, coldLength);
+        }
+        List<String> retained = new ArrayList<>(size());
+        for (long seq = total - size(); seq < total; seq++) {
+            retained.add(lines[(int) (seq % capacity)]);
+        }
+        return new Snapshot(total, retained.size(), retained, null, 0);
+    }
+
+    // Retained lines oldest first, without making a cold room hot
+    synchronized List<String> peek() {
+        Snapshot snapshot = snapshot();
+        return snapshot.lines != null ? snapshot.lines : unpack(snapshot.cold, snapshot.coldLength, snapshot.count);
+    }
+
+    // Either the count retained lines, oldest first, or the cold block holding them
+    static final class Snapshot {
+        final long total;
+        final int count;
+        final List<String> lines;
+        final byte[] cold;
+        final int coldLength;
+
+        Snapshot(long total, int count, List<String> lines, byte[] cold, int coldLength) {
+            this.total = total;
+            this.count = count;
+            this.lines = lines;
+            this.cold = cold;
+            this.coldLength = coldLength;
+        }
+    }
+
+    // A chunk of history. The cursor is the sequence number of the first line, older lines can be requested by
+    // asking for the lines before the cursor while hasMore is set.
+    static final class Page {
+        final long cursor;
+        final boolean hasMore;
+        final List<String> lines;
+
+        Page(long cursor, boolean hasMore, List<String> lines) {
+            this.cursor = cursor;
+            this.hasMore = hasMore;
+            this.lines = lines;
+        }
+    }
+}
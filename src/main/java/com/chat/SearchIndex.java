@@ -0,0 +1,351 @@
+package com.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Full-text search over the chat lines of every room, indexed incrementally as the listener ingests them.
+//
+// A room keeps its lines in blocks of up to BLOCK_LINES. A block stores the text of its lines as UTF-8 in one byte
+// array and a posting per term and line, see Block. A query looks up the postings of its terms in each block, newest
+// block first, intersects them and only decodes the lines it returns, so it never scans the stored text. A room keeps
+// at least its newest maxLines lines searchable, whole blocks of the oldest lines are dropped beyond that. Blocks
+// start small and grow with their lines, so a quiet room costs little more than its text.
+//
+// Like RoomHistory, each room guards its own index, so indexing different rooms never contends.
+class SearchIndex {
+
+    // Lines searchable per room by default, a multiple of the lines the history keeps. Can be overridden with
+    // -Dchat.search.lines=<lines>
+    static final int HISTORY_MULTIPLE = 4;
+    static final int DEFAULT_MAX_LINES = HISTORY_MULTIPLE * MessageHistory.DEFAULT_CAPACITY;
+
+    static final int BLOCK_LINES = 4096;
+
+    // Initial size of a block's text and of its line offsets, both double as lines are added
+    private static final int INITIAL_TEXT_BYTES = 256;
+    private static final int INITIAL_BLOCK_LINES = 16;
+
+    private final int blockLines;
+    private final int maxBlocks;
+    private final ConcurrentMap<String, RoomIndex> rooms = new ConcurrentHashMap<>();
+
+    SearchIndex(int maxLines) {
+        if (maxLines <= 0) {
+            throw new IllegalArgumentException("Searchable lines must be positive: " + maxLines);
+        }
+        // About four blocks, so dropping the oldest one only drops a quarter of the lines, plus the newest block that
+        // is still filling up
+        this.blockLines = Math.max(INITIAL_BLOCK_LINES, Math.min(BLOCK_LINES, (maxLines + 3) / 4));
+        this.maxBlocks = (maxLines + blockLines - 1) / blockLines + 1;
+    }
+
+    void add(String room, String line) {
+        RoomIndex index = rooms.get(room);
+        if (index == null) {
+            index = rooms.computeIfAbsent(room, r -> new RoomIndex());
+        }
+        index.add(line);
+    }
+
+    // Indexes lines older than every line already indexed for the room, e.g. restored history indexed after live
+    // messages started arriving
+    void seed(String room, List<String> older) {
+        if (older.isEmpty()) {
+            return;
+        }
+        RoomIndex index = rooms.get(room);
+        if (index == null) {
+            index = rooms.computeIfAbsent(room, r -> new RoomIndex());
+        }
+        index.seed(older);
+    }
+
+    // Returns at most limit of the newest lines of the room containing every term of the query, oldest first. Terms
+    // are matched case-insensitively and as whole words.
+    List<String> search(String room, String query, int limit) {
+        RoomIndex index = rooms.get(room);
+        List<String> terms = terms(query);
+        if (index == null || terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        return index.search(terms, limit);
+    }
+
+    // Number of lines currently searchable in the room
+    int size(String room) {
+        RoomIndex index = rooms.get(room);
+        return index == null ? 0 : index.size();
+    }
+
+    // Releases the spare capacity of the room's index, e.g. once the room went idle
+    void compact(String room) {
+        RoomIndex index = rooms.get(room);
+        if (index != null) {
+            index.compact();
+        }
+    }
+
+    // Rough estimate of the heap used by the index of every room, O(rooms)
+    long estimatedBytes() {
+        long bytes = 0;
+        for (RoomIndex index : rooms.values()) {
+            bytes += index.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    // Splits text into lower case words of letters and digits, without duplicates
+    static List<String> terms(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String term = lower.substring(start, i);
+                if (!terms.contains(term)) {
+                    terms.add(term);
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private final class RoomIndex {
+        private final ArrayDeque<Block> blocks = new ArrayDeque<>();
+        private int size;
+
+        synchronized void add(String line) {
+            Block block = blocks.peekLast();
+            if (block == null || block.isFull()) {
+                if (block != null) {
+                    block.trim();
+                }
+                if (blocks.size() == maxBlocks) {
+                    size -= blocks.removeFirst().lines;
+                }
+                block = new Block(blockLines);
+                blocks.addLast(block);
+            }
+            block.add(line);
+            size++;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long estimatedBytes() {
+            long bytes = 64;
+            for (Block block : blocks) {
+                bytes += block.bytes;
+            }
+            return bytes;
+        }
+
+        // Blocks only grow at the end, so the lines already indexed are taken out and added again after the older ones
+        synchronized void seed(List<String> older) {
+            List<String> newer = new ArrayList<>(size);
+            for (Block block : blocks) {
+                for (int i = 0; i < block.lines; i++) {
+                    newer.add(block.line(i));
+                }
+            }
+            blocks.clear();
+            size = 0;
+            for (String line : older) {
+                add(line);
+            }
+            for (String line : newer) {
+                add(line);
+            }
+        }
+
+        synchronized List<String> search(List<String> terms, int limit) {
+            List<String> found = new ArrayList<>();
+            int[] hashes = new int[terms.size()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = terms.get(i).hashCode();
+            }
+
+            Iterator<Block> newestFirst = blocks.descendingIterator();
+            while (newestFirst.hasNext() && found.size() < limit) {
+                newestFirst.next().search(terms, hashes, limit, found);
+            }
+
+            Collections.reverse(found);
+            return found;
+        }
+
+        // Releases the spare capacity of the block still being filled
+        synchronized void compact() {
+            Block block = blocks.peekLast();
+            if (block != null && !block.sealed) {
+                block.compact();
+            }
+        }
+    }
+
+    // A block records every term of a line as one posting, the term's hash in the high half of a long and the line
+    // number in the low half, so a posting costs 8 bytes instead of a map entry and a String per term. While the block
+    // fills up its postings are kept in arrival order and scanned, once it is full they are sorted so the postings of
+    // a term are one range found by binary search. Hashes can collide, lines are checked against the query terms
+    // before they are returned.
+    private static final class Block {
+        private final int capacity;
+
+        // UTF-8 text of every line, line i spans offsets[i] until offsets[i + 1]
+        private byte[] text = new byte[INITIAL_TEXT_BYTES];
+        private int[] offsets;
+        private int lines;
+
+        private long[] postings = new long[4 * INITIAL_BLOCK_LINES];
+        private int postingCount;
+
+        // True once full, the postings are then sorted
+        private boolean sealed;
+
+        // Rough estimate of the heap used by the block
+        private long bytes;
+
+        Block(int capacity) {
+            this.capacity = capacity;
+            offsets = new int[Math.min(capacity, INITIAL_BLOCK_LINES) + 1];
+            bytes = 80 + text.length + 4L * offsets.length + 8L * postings.length;
+        }
+
+        boolean isFull() {
+            return lines == capacity;
+        }
+
+        void add(String line) {
+            byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+            int start = offsets[lines];
+            if (start + utf8.length > text.length) {
+                int length = Math.max(text.length * 2, start + utf8.length);
+                bytes += length - text.length;
+                text = Arrays.copyOf(text, length);
+            }
+            System.arraycopy(utf8, 0, text, start, utf8.length);
+            if (lines + 2 > offsets.length) {
+                int length = Math.min(capacity, Math.max(INITIAL_BLOCK_LINES, 2 * (offsets.length - 1))) + 1;
+                bytes += 4L * (length - offsets.length);
+                offsets = Arrays.copyOf(offsets, length);
+            }
+            offsets[lines + 1] = start + utf8.length;
+
+            for (String term : terms(line)) {
+                if (postingCount == postings.length) {
+                    int length = Math.max(4 * INITIAL_BLOCK_LINES, postings.length * 2);
+                    bytes += 8L * (length - postings.length);
+                    postings = Arrays.copyOf(postings, length);
+                }
+                postings[postingCount++] = posting(term.hashCode(), lines);
+            }
+            lines++;
+        }
+
+        String line(int line) {
+            return new String(text, offsets[line], offsets[line + 1] - offsets[line], StandardCharsets.UTF_8);
+        }
+
+        // Adds the lines matching every term to found, newest first, until it holds limit lines
+        void search(List<String> queryTerms, int[] hashes, int limit, List<String> found) {
+            if (!sealed) {
+                // Few lines, scan for the first term and check the others on the text
+                for (int p = postingCount - 1; p >= 0 && found.size() < limit; p--) {
+                    if (hashOf(postings[p]) == hashes[0]) {
+                        addIfMatch(lineOf(postings[p]), queryTerms, found);
+                    }
+                }
+                return;
+            }
+
+            // Walk the postings of the rarest term and probe the others
+            int shortest = -1;
+            int from = 0;
+            int to = 0;
+            for (int i = 0; i < hashes.length; i++) {
+                int first = firstPosting(hashes[i], 0);
+                int end = firstPosting(hashes[i], Integer.MAX_VALUE);
+                if (first == end) {
+                    return;
+                }
+                if (shortest < 0 || end - first < to - from) {
+                    shortest = i;
+                    from = first;
+                    to = end;
+                }
+            }
+
+            for (int p = to - 1; p >= from && found.size() < limit; p--) {
+                int line = lineOf(postings[p]);
+                boolean match = true;
+                for (int i = 0; i < hashes.length && match; i++) {
+                    match = i == shortest || Arrays.binarySearch(postings, 0, postingCount,
+                            posting(hashes[i], line)) >= 0;
+                }
+                if (match) {
+                    addIfMatch(line, queryTerms, found);
+                }
+            }
+        }
+
+        // Sorts the postings of a full block and releases its spare capacity
+        void trim() {
+            compact();
+            Arrays.sort(postings, 0, postingCount);
+            sealed = true;
+        }
+
+        void compact() {
+            bytes -= text.length - offsets[lines];
+            text = Arrays.copyOf(text, offsets[lines]);
+            bytes -= 4L * (offsets.length - lines - 1);
+            offsets = Arrays.copyOf(offsets, lines + 1);
+            bytes -= 8L * (postings.length - postingCount);
+            postings = Arrays.copyOf(postings, postingCount);
+        }
+
+        // Index of the first posting of the term at or after the given line
+        private int firstPosting(int hash, int line) {
+            long key = posting(hash, line);
+            int low = 0;
+            int high = postingCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (postings[middle] < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        // Guards against hash collisions
+        private void addIfMatch(int line, List<String> queryTerms, List<String> found) {
+            String text = line(line);
+            if (terms(text).containsAll(queryTerms)) {
+                found.add(text);
+            }
+        }
+
+        private static long posting(int hash, int line) {
+            return (long) hash << 32 | line;
+        }
+
+        private static int hashOf(long posting) {
+            return (int) (posting >> 32);
+        }
+
+        private static int lineOf(long posting) {
+            return (int) posting;
+        }
+    }
+}
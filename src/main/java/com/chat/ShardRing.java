@@ -0,0 +1,75 @@
+package com.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Consistent hash ring assigning every room to one of a fixed number of listener shards. Each shard is placed on the
+// ring at many virtual points so rooms spread evenly, and adding or removing a shard only moves the rooms of the
+// ring segments next to its points. The ring is immutable and safe to share between threads.
+class ShardRing {
+
+    static final int DEFAULT_VIRTUAL_NODES = 512;
+
+    private final int shards;
+
+    // Sorted hashes of all virtual points and the shard owning each of them
+    private final long[] points;
+    private final int[] owners;
+
+    ShardRing(int shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    ShardRing(int shards, int virtualNodes) {
+        if (shards <= 0 || virtualNodes <= 0) {
+            throw new IllegalArgumentException("Shard and virtual node counts must be positive");
+        }
+        this.shards = shards;
+
+        long[][] entries = new long[shards * virtualNodes][];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                entries[shard * virtualNodes + node] = new long[]{hash("listener-" + shard + "#" + node), shard};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+
+        points = new long[entries.length];
+        owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    int shards() {
+        return shards;
+    }
+
+    // Shard owning the room: the owner of the first point at or after the room's hash, wrapping around the ring
+    int shardOf(String room) {
+        if (shards == 1) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(points, hash(room));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes followed by a murmur finalizer, stable across JVMs and restarts
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,153 @@
+package com.chat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+// One step of the listener's pipeline: daemon worker threads running the tasks of a bounded RingQueue. Submitting
+// never blocks, offer fails when the queue is full and the caller decides what to shed. Idle workers spin briefly and
+// then park until a task is offered.
+//
+// close stops the stage without losing work: every task that was accepted still runs. shutdown drops queued tasks.
+final class Stage {
+
+    // Polls of an empty queue before a worker parks, and the longest a parked worker sleeps before looking again
+    private static final int IDLE_SPINS = 64;
+    private static final long MAX_PARK_NANOS = 100_000_000;
+
+    // Backoff of put while the queue is full: yields first, then parks for doubling times up to the longest park
+    private static final int FULL_YIELDS = 16;
+    private static final long MIN_FULL_PARK_NANOS = 10_000;
+    private static final long MAX_FULL_PARK_NANOS = 1_000_000;
+
+    private final RingQueue<Runnable> queue;
+    private final Thread[] workers;
+
+    // 1 while the worker at that index is parked or about to park
+    private final AtomicIntegerArray parked;
+
+    private volatile boolean running = true;
+
+    // Offers in progress, close waits for them so a task cannot slip into the queue after it was drained
+    private final AtomicInteger offering = new AtomicInteger();
+
+    // A task failing for every message must not flood the console
+    private final RateLimitedLog failureLog = new RateLimitedLog();
+
+    Stage(String name, int threads, int capacity) {
+        queue = new RingQueue<>(capacity);
+        workers = new Thread[Math.max(1, threads)];
+        parked = new AtomicIntegerArray(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            final int id = i;
+            workers[i] = new Thread(() -> work(id), name);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // Queues a task, returns false if the queue is full or the stage is stopped
+    boolean offer(Runnable task) {
+        offering.incrementAndGet();
+        try {
+            if (!running || !queue.offer(task)) {
+                return false;
+            }
+        } finally {
+            offering.decrementAndGet();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            if (parked.get(i) == 1) {
+                LockSupport.unpark(workers[i]);
+                break;
+            }
+        }
+        return true;
+    }
+
+    // Queues a task, waiting while the queue is full. Returns false, without queueing it, if the stage is stopped.
+    boolean put(Runnable task) {
+        long parkNanos = MIN_FULL_PARK_NANOS;
+        for (int attempt = 0; !offer(task); attempt++) {
+            if (!running) {
+                return false;
+            }
+            if (attempt < FULL_YIELDS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, parkNanos);
+                parkNanos = Math.min(MAX_FULL_PARK_NANOS, parkNanos * 2);
+            }
+        }
+        return true;
+    }
+
+    boolean isStopped() {
+        return !running;
+    }
+
+    // Takes the oldest queued task away from the workers, or null if there is none
+    Runnable poll() {
+        return queue.poll();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    int capacity() {
+        return queue.capacity();
+    }
+
+    // Stops the workers, queued tasks are not run
+    void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    // Stops accepting tasks, waits for the workers to finish their current task and runs whatever is still queued on
+    // the calling thread, in queue order
+    void close() throws InterruptedException {
+        shutdown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        while (offering.get() > 0) {
+            Thread.yield();
+        }
+        for (Runnable task = queue.poll(); task != null; task = queue.poll()) {
+            run(task);
+        }
+    }
+
+    private void work(int id) {
+        int idle = 0;
+        while (running) {
+            Runnable task = queue.poll();
+            if (task == null && ++idle > IDLE_SPINS) {
+                // Announce the park before looking a last time, so an offer either sees the flag or we see its task
+                parked.set(id, 1);
+                task = queue.poll();
+                if (task == null) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                parked.set(id, 0);
+            }
+
+            if (task != null) {
+                idle = 0;
+                run(task);
+            }
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            failureLog.log("Task failed in " + Thread.currentThread().getName(), e);
+        }
+    }
+}
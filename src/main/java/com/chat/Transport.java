@@ -0,0 +1,33 @@
+package com.chat;
+
+// The small slice of a messaging API used by the chat client and listener: topic publish/subscribe (including
+// wildcard subscriptions such as "chat/rooms/*") and request/reply with a timeout. JcsmpTransport talks to a Solace
+// broker, InMemoryBroker provides an in-process implementation for load tests and benchmarks.
+interface Transport {
+
+    // Connects to the broker and starts delivering messages from our subscriptions to the handler
+    void connect(MessageHandler handler) throws TransportException;
+
+    void subscribe(String topic) throws TransportException;
+
+    void unsubscribe(String topic) throws TransportException;
+
+    void publish(String topic, Message message) throws TransportException;
+
+    // Publishes the first count messages, messages[i] to topics[i], in order. Transports that can hand a batch to the
+    // broker in one call override this, the default publishes them one by one.
+    default void publishBatch(String[] topics, Message[] messages, int count) throws TransportException {
+        for (int i = 0; i < count; i++) {
+            publish(topics[i], messages[i]);
+        }
+    }
+
+    // Sends a request and blocks until the first reply arrives, throws TransportTimeoutException if none arrives
+    // within timeoutMillis
+    Message request(String topic, Message message, long timeoutMillis) throws TransportException;
+
+    // Replies to a request previously delivered to our handler
+    void reply(Message request, Message reply) throws TransportException;
+
+    void close();
+}
@@ -0,0 +1,13 @@
+package com.chat;
+
+// Raised by a Transport when the underlying messaging system fails
+class TransportException extends Exception {
+
+    TransportException(String message) {
+        super(message);
+    }
+
+    TransportException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
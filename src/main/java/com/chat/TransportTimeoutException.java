@@ -0,0 +1,13 @@
+package com.chat;
+
+// Raised by Transport.request when no reply arrived within the timeout
+class TransportTimeoutException extends TransportException {
+
+    TransportTimeoutException(String message) {
+        super(message);
+    }
+
+    TransportTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,64 @@
+package com.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Varints and strings as written by the envelope codec, cold room blocks and history snapshots. A varint is an
+// unsigned integer written seven bits per byte, least significant first, with the high bit set on every byte but the
+// last. A string is a varint byte length followed by its UTF-8.
+final class Varint {
+
+    // Longest varint, a 64-bit value
+    static final int MAX_BYTES = 10;
+
+    private Varint() {
+    }
+
+    // Writes the value at position and returns the position after it, out must have MAX_BYTES left
+    static int write(byte[] out, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    // Number of bytes of the varint at position, -1 if it does not end before limit or is longer than MAX_BYTES
+    static int length(byte[] in, int position, int limit) {
+        int end = Math.min(limit, position + MAX_BYTES);
+        for (int i = position; i < end; i++) {
+            if (in[i] >= 0) {
+                return i - position + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Value of the varint at position, which must be complete, see length
+    static long read(byte[] in, int position) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    // Reads the string at the position of a heap buffer and moves past it. Throws an IllegalArgumentException if the
+    // string does not end before the limit.
+    static String readString(ByteBuffer in) {
+        byte[] array = in.array();
+        int position = in.arrayOffset() + in.position();
+        int limit = in.arrayOffset() + in.limit();
+        int prefix = length(array, position, limit);
+        long length = prefix < 0 ? -1 : read(array, position);
+        if (length < 0 || length > limit - position - prefix) {
+            throw new IllegalArgumentException("Malformed string at " + in.position());
+        }
+        in.position(in.position() + prefix + (int) length);
+        return new String(array, position + prefix, (int) length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,77 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class EnvelopeCodecTest {
+
+    @Test
+    public void stringsRoundTripLikeStringGetBytes() {
+        for (String body : Arrays.asList("", "plain", "café", "€100", "emoji 😀",
+                "x\uD800y", "x\uDC00y", "trailing \uD83D")) {
+            Envelope envelope = new Envelope().set(Envelope.CHAT, "room", "sender", body);
+            byte[] encoded = EnvelopeCodec.local().encode(envelope);
+            Envelope decoded = EnvelopeCodec.local().decode(encoded, new Envelope());
+
+            String expected = new String(body.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+            assertEquals(expected, decoded.body);
+            assertEquals("room", decoded.room);
+            assertEquals("sender", decoded.sender);
+        }
+    }
+
+    @Test
+    public void loneSurrogateIsReplacedByOneByte() {
+        Envelope envelope = new Envelope().set(Envelope.CHAT, "room", "sender", "x\uD800y");
+        Envelope decoded = EnvelopeCodec.local().decode(EnvelopeCodec.local().encode(envelope), new Envelope());
+        assertEquals("x?y", decoded.body);
+    }
+
+    @Test
+    public void clientIdRoundTripsAndMayBeMissing() {
+        Envelope envelope = new Envelope().set(Envelope.JOIN, "room", "noname", "").from("client-1");
+        byte[] encoded = EnvelopeCodec.local().encode(envelope);
+        assertEquals("client-1", EnvelopeCodec.local().decode(encoded, new Envelope()).client);
+
+        // An envelope of a sender that writes no client id ends after the body
+        byte[] older = Arrays.copyOf(encoded, encoded.length - 1 - "client-1".length());
+        Envelope decoded = EnvelopeCodec.local().decode(older, new Envelope());
+        assertEquals("", decoded.client);
+        assertEquals("noname", decoded.sender);
+    }
+
+    // A string length near Integer.MAX_VALUE must not overflow the bounds check
+    @Test
+    public void hugeStringLengthIsMalformed() {
+        byte[] join = {EnvelopeCodec.VERSION, Envelope.JOIN, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0xF8, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        assertMalformed(join);
+
+        // The listener decodes a chat line without decoding the whole envelope
+        byte[] chat = join.clone();
+        chat[1] = Envelope.CHAT;
+        assertMalformed(chat);
+        try {
+            EnvelopeCodec.local().decodeLine(chat);
+            fail("decodeLine accepted a malformed envelope");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // A length beyond 32 bits must not be truncated to a small one either
+        byte[] wide = {EnvelopeCodec.VERSION, Envelope.JOIN, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 'a'};
+        assertMalformed(wide);
+    }
+
+    private static void assertMalformed(byte[] data) {
+        try {
+            EnvelopeCodec.local().decode(data, new Envelope());
+            fail("decode accepted a malformed envelope");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
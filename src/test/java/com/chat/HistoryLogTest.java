@@ -0,0 +1,175 @@
+package com.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class HistoryLogTest {
+
+    // Small segments so a few hundred lines roll over several times
+    private static final int SEGMENT_SIZE = 512;
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("history-log-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void reopensAfterSegmentRollover() throws IOException {
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            for (int i = 0; i < 300; i++) {
+                log.append("room" + (i % 3), "line " + i);
+            }
+        }
+        assertTrue(segments() > 1);
+
+        Map<String, Restored> rooms = replay(5);
+        assertEquals(3, rooms.size());
+        assertEquals(100, rooms.get("room0").total);
+        assertEquals(Arrays.asList("line 285", "line 288", "line 291", "line 294", "line 297"),
+                rooms.get("room0").lines);
+        assertEquals(Arrays.asList("line 286", "line 289", "line 292", "line 295", "line 298"),
+                rooms.get("room1").lines);
+
+        // Appending after a restart continues the room's chain
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            log.append("room0", "after restart");
+        }
+        rooms = replay(3);
+        assertEquals(101, rooms.get("room0").total);
+        assertEquals(Arrays.asList("line 294", "line 297", "after restart"), rooms.get("room0").lines);
+        assertEquals(100, rooms.get("room2").total);
+    }
+
+    // The index header is updated after the room tails, a crash in between leaves it behind them. Reopening must not
+    // write over the last record, which the header no longer covers.
+    @Test
+    public void recoversWhenTheHeaderLagsTheRoomTails() throws IOException {
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            for (int i = 0; i < 100; i++) {
+                log.append("room" + (i % 2), "line " + i);
+            }
+        }
+        // Index: [long write position] then [short name length][name][long tail][long count] per room
+        long room1Tail = readIndexLong(8 + 2 + 5 + 16 + 2 + 5);
+        writeIndexHeader(room1Tail);
+
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            log.append("room0", "after crash");
+            log.append("room1", "after crash too");
+        }
+
+        Map<String, Restored> rooms = replay(3);
+        assertEquals(51, rooms.get("room0").total);
+        assertEquals(Arrays.asList("line 96", "line 98", "after crash"), rooms.get("room0").lines);
+        assertEquals(51, rooms.get("room1").total);
+        assertEquals(Arrays.asList("line 97", "line 99", "after crash too"), rooms.get("room1").lines);
+    }
+
+    // A room entry is written before its name length, an entry torn by a crash reads as the end of the index
+    @Test
+    public void ignoresATornIndexEntry() throws IOException {
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            log.append("room0", "line 0");
+        }
+        int end = 8 + 2 + "room0".length() + 16;
+        try (FileChannel index = FileChannel.open(directory.resolve("rooms.idx"), StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(2 + 5 + 16);
+            torn.putShort((short) 0).put("torn!".getBytes(StandardCharsets.UTF_8)).putLong(12345).putLong(1);
+            torn.flip();
+            index.write(torn, end);
+        }
+
+        assertEquals(Collections.singleton("room0"), replay(10).keySet());
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            log.append("room1", "line 1");
+        }
+        Map<String, Restored> rooms = replay(10);
+        assertEquals(Collections.singletonList("line 0"), rooms.get("room0").lines);
+        assertEquals(Collections.singletonList("line 1"), rooms.get("room1").lines);
+    }
+
+    @Test
+    public void restoresRoomsRegisteredBeforeTheirFirstMessage() throws IOException {
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            log.register("empty");
+            log.append("busy", "hello");
+        }
+
+        Map<String, Restored> rooms = replay(10);
+        assertEquals(0, rooms.get("empty").total);
+        assertTrue(rooms.get("empty").lines.isEmpty());
+
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            log.append("empty", "first");
+        }
+        rooms = replay(10);
+        assertEquals(1, rooms.get("empty").total);
+        assertEquals(Collections.singletonList("first"), rooms.get("empty").lines);
+        assertEquals(Collections.singletonList("hello"), rooms.get("busy").lines);
+    }
+
+    private Map<String, Restored> replay(int maxLines) throws IOException {
+        Map<String, Restored> rooms = new LinkedHashMap<>();
+        try (HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE)) {
+            log.replay(maxLines, (room, total, lines) -> rooms.put(room, new Restored(total, lines)));
+        }
+        return rooms;
+    }
+
+    private long readIndexLong(long position) throws IOException {
+        try (FileChannel index = FileChannel.open(directory.resolve("rooms.idx"), StandardOpenOption.READ)) {
+            ByteBuffer value = ByteBuffer.allocate(8);
+            index.read(value, position);
+            return value.getLong(0);
+        }
+    }
+
+    private void writeIndexHeader(long writePosition) throws IOException {
+        try (FileChannel index = FileChannel.open(directory.resolve("rooms.idx"), StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8).putLong(0, writePosition);
+            index.write(header, 0);
+        }
+    }
+
+    private long segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("segment-")).count();
+        }
+    }
+
+    private static final class Restored {
+        final long total;
+        final List<String> lines;
+
+        Restored(long total, List<String> lines) {
+            this.total = total;
+            this.lines = lines;
+        }
+    }
+}
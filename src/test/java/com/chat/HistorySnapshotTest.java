@@ -0,0 +1,176 @@
+package com.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class HistorySnapshotTest {
+
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("history-snapshot-test");
+        file = directory.resolve("history.snapshot");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory.resolve("history.snapshot.tmp"));
+        Files.delete(directory);
+    }
+
+    @Test
+    public void roundTripsHotColdAndEmptyRooms() throws IOException {
+        MessageHistory history = new MessageHistory(10);
+        for (int i = 0; i < 25; i++) {
+            history.append("busy", "line " + i);
+        }
+        history.append("quiet", "café €1 😀");
+        history.room("empty");
+        for (int i = 0; i < 13; i++) {
+            history.append("cold", "old line " + i);
+        }
+        assertTrue(history.get("cold").compress());
+
+        assertEquals(4, HistorySnapshot.write(history, file));
+        MessageHistory restored = new MessageHistory(10);
+        assertEquals(4, HistorySnapshot.read(file, restored, 2));
+
+        assertEquals(history.roomNames(), restored.roomNames());
+        for (String room : history.roomNames()) {
+            assertEquals(room, history.get(room).total(), restored.get(room).total());
+            assertEquals(room, history.get(room).peek(), restored.get(room).peek());
+        }
+
+        // A cold room is restored without being inflated and only becomes hot when it is used
+        assertTrue(restored.get("cold").isCold());
+        assertFalse(restored.get("busy").isCold());
+        assertEquals(Arrays.asList("old line 11", "old line 12"), restored.get("cold").last(2));
+        assertFalse(restored.get("cold").isCold());
+        assertTrue(restored.get("empty").peek().isEmpty());
+    }
+
+    // Rooms are written in chunks of about a megabyte, decoded in parallel
+    @Test
+    public void roundTripsSeveralChunks() throws IOException {
+        MessageHistory history = new MessageHistory(10);
+        char[] padding = new char[250];
+        Arrays.fill(padding, 'x');
+        for (int room = 0; room < 2000; room++) {
+            for (int i = 0; i < 10; i++) {
+                history.append("room" + room, room + " " + i + " " + new String(padding));
+            }
+            if (room % 2 == 0) {
+                history.get("room" + room).compress();
+            }
+        }
+        assertEquals(2000, HistorySnapshot.write(history, file));
+        assertTrue(Files.size(file) > 2 * 1024 * 1024);
+
+        MessageHistory restored = new MessageHistory(10);
+        assertEquals(2000, HistorySnapshot.read(file, restored, 4));
+        for (int room = 0; room < 2000; room++) {
+            assertEquals(history.get("room" + room).peek(), restored.get("room" + room).peek());
+            assertEquals(room % 2 == 0, restored.get("room" + room).isCold());
+        }
+    }
+
+    // A snapshot written with another capacity is rebuilt, keeping the total and as many of the newest lines as fit
+    @Test
+    public void rebuildsRoomsWhenTheCapacityChanged() throws IOException {
+        MessageHistory history = new MessageHistory(10);
+        for (int i = 0; i < 25; i++) {
+            history.append("hot", "hot " + i);
+            history.append("cold", "cold " + i);
+        }
+        history.get("cold").compress();
+        HistorySnapshot.write(history, file);
+
+        MessageHistory smaller = new MessageHistory(4);
+        HistorySnapshot.read(file, smaller, 1);
+        assertEquals(25, smaller.get("cold").total());
+        assertEquals(Arrays.asList("cold 21", "cold 22", "cold 23", "cold 24"), smaller.get("cold").peek());
+        assertEquals(Arrays.asList("hot 21", "hot 22", "hot 23", "hot 24"), smaller.get("hot").peek());
+
+        MessageHistory larger = new MessageHistory(20);
+        HistorySnapshot.read(file, larger, 1);
+        assertEquals(25, larger.get("cold").total());
+        assertEquals(history.get("cold").peek(), larger.get("cold").peek());
+        larger.append("cold", "cold 25");
+        assertEquals(11, larger.get("cold").size());
+        assertEquals(Collections.singletonList("cold 25"), larger.get("cold").last(1));
+    }
+
+    @Test
+    public void missingFileRestoresNothing() throws IOException {
+        MessageHistory restored = new MessageHistory(10);
+        assertEquals(0, HistorySnapshot.read(file, restored, 1));
+        assertEquals(0, restored.roomCount());
+    }
+
+    @Test
+    public void detectsCorruptedBytes() throws IOException {
+        writeSnapshotOfSomeRooms();
+        long size = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, size / 2);
+            b.put(0, (byte) (b.get(0) ^ 0x20));
+            b.rewind();
+            channel.write(b, size / 2);
+        }
+        assertUnreadable();
+    }
+
+    @Test
+    public void detectsTruncation() throws IOException {
+        writeSnapshotOfSomeRooms();
+        long size = Files.size(file);
+
+        // Without the terminating empty chunk, then cut inside the last chunk
+        for (long cut : new long[]{12, size / 3}) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(Files.size(file) - cut);
+            }
+            assertUnreadable();
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Files.write(file, "not a snapshot, just text".getBytes(StandardCharsets.UTF_8));
+        assertUnreadable();
+    }
+
+    private void writeSnapshotOfSomeRooms() throws IOException {
+        MessageHistory history = new MessageHistory(10);
+        for (int i = 0; i < 200; i++) {
+            history.append("room" + (i % 7), "line " + i);
+        }
+        history.get("room3").compress();
+        HistorySnapshot.write(history, file);
+    }
+
+    private void assertUnreadable() {
+        try {
+            HistorySnapshot.read(file, new MessageHistory(10), 2);
+            fail("A damaged snapshot was read");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ListenerTest {
+
+    // A sharded listener subscribes to a room when it is joined. A join shed by the full reply stage is answered
+    // RETRY, but must still subscribe, or the room's messages would never be stored.
+    @Test
+    public void shedJoinStillSubscribesToItsRoom() throws Exception {
+        ShardRing ring = new ShardRing(2);
+        int shard = ring.shardOf(Listener.ROOM_PREFIX + "room0");
+        List<String> rooms = new ArrayList<>();
+        for (int i = 0; rooms.size() < 6; i++) {
+            if (ring.shardOf(Listener.ROOM_PREFIX + "room" + i) == shard) {
+                rooms.add("room" + i);
+            }
+        }
+
+        BlockingTransport transport = new BlockingTransport();
+        Listener listener = new Listener(transport, new MessageHistory(10), "hi", 1, 2,
+                1, ring, shard, new SearchIndex(40));
+        listener.start();
+        try {
+            // The only reply worker is stuck replying to the first join, the next two fill the reply stage and every
+            // further one sheds the oldest queued join
+            listener.onMessage(join(rooms.get(0)));
+            assertTrue(transport.replying.await(5, TimeUnit.SECONDS));
+            for (String room : rooms.subList(1, rooms.size())) {
+                listener.onMessage(join(room));
+            }
+
+            assertEquals(3, transport.retries.size());
+            for (String room : rooms.subList(0, 4)) {
+                assertTrue(room, transport.subscriptions.contains(Listener.ROOM_PREFIX + room));
+            }
+
+            transport.release.countDown();
+            for (String room : rooms) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!transport.subscriptions.contains(Listener.ROOM_PREFIX + room)
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertTrue(room, transport.subscriptions.contains(Listener.ROOM_PREFIX + room));
+            }
+        } finally {
+            transport.release.countDown();
+            listener.close();
+        }
+    }
+
+    private static Message join(String room) {
+        return Message.envelope(new Envelope().set(Envelope.JOIN, room, "bob", ""))
+                .delivered(Listener.HEARTBEAT_TOPIC, new Object());
+    }
+
+    // Records subscriptions and RETRY replies, every other reply waits until released
+    private static final class BlockingTransport implements Transport {
+        final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+        final List<Message> retries = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch replying = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void connect(MessageHandler handler) {
+        }
+
+        @Override
+        public void subscribe(String topic) {
+            subscriptions.add(topic);
+        }
+
+        @Override
+        public void unsubscribe(String topic) {
+            subscriptions.remove(topic);
+        }
+
+        @Override
+        public void publish(String topic, Message message) {
+        }
+
+        @Override
+        public Message request(String topic, Message message, long timeoutMillis) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reply(Message request, Message reply) {
+            if (Listener.RETRY.equals(reply.getText())) {
+                retries.add(request);
+                return;
+            }
+            replying.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+// Several threads appending to the same rooms at once must not lose or reorder any of their lines
+public class MessageHistoryStressTest {
+
+    private static final int THREADS = 8;
+    private static final int ROOMS = 4;
+    private static final int APPENDS = 50_000;
+    private static final int CAPACITY = 100;
+
+    @Test(timeout = 60_000)
+    public void concurrentAppendsToOverlappingRoomsAreNotLost() throws Exception {
+        MessageHistory history = new MessageHistory(CAPACITY);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Every thread writes to every room, so each room is appended to by all threads at once
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < APPENDS; i++) {
+                        history.append(room(i % ROOMS), thread + ":" + i);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            writer.start();
+            threads.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        assertEquals(null, failure.get());
+
+        assertEquals(ROOMS, history.roomCount());
+        for (int r = 0; r < ROOMS; r++) {
+            RoomHistory room = history.get(room(r));
+            assertEquals("lines appended to " + room(r), (long) THREADS * APPENDS / ROOMS, room.total());
+
+            // The retained lines are the newest ones of the room, so the lines of each thread among them must be the
+            // newest lines that thread wrote to the room, in the order it wrote them
+            List<String> tail = history.last(room(r), CAPACITY);
+            assertEquals(CAPACITY, tail.size());
+            int[] expected = new int[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                expected[t] = -1;
+            }
+            for (String line : tail) {
+                int thread = Integer.parseInt(line.substring(0, line.indexOf(':')));
+                int i = Integer.parseInt(line.substring(line.indexOf(':') + 1));
+                assertEquals("room of " + line, r, i % ROOMS);
+                if (expected[thread] >= 0) {
+                    assertEquals("line after " + thread + ":" + (expected[thread] - ROOMS), expected[thread], i);
+                }
+                expected[thread] = i + ROOMS;
+            }
+            for (int t = 0; t < THREADS; t++) {
+                if (expected[t] >= 0) {
+                    assertEquals("last line of thread " + t + " in " + room(r), lastAppend(r), expected[t] - ROOMS);
+                }
+            }
+        }
+    }
+
+    private static String room(int r) {
+        return Listener.ROOM_PREFIX + "room" + r;
+    }
+
+    // Index of the last line each thread appends to room r
+    private static int lastAppend(int r) {
+        return APPENDS - ROOMS + r;
+    }
+}
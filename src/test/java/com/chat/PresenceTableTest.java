@@ -0,0 +1,55 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PresenceTableTest {
+
+    private static final String ROOM = "chat/rooms/lobby";
+
+    // Every client starts out as "noname", two of them are still two members
+    @Test
+    public void membersSharingANameAreCountedApart() {
+        PresenceTable presence = new PresenceTable();
+        assertTrue(presence.seen(ROOM, "client-1", "noname", 1000));
+        assertTrue(presence.seen(ROOM, "client-2", "noname", 1000));
+        assertFalse(presence.seen(ROOM, "client-1", "noname", 2000));
+        assertEquals(2, presence.count(ROOM));
+        assertEquals(Arrays.asList("noname", "noname"), presence.members(ROOM));
+
+        assertTrue(presence.leave(ROOM, "client-1"));
+        assertEquals(1, presence.count(ROOM));
+        assertEquals(Collections.singletonList("noname"), presence.members(ROOM));
+
+        // client-1 was refreshed after client-2, so only client-2 expires
+        assertTrue(presence.seen(ROOM, "client-1", "alice", 3000));
+        assertEquals(1, presence.expire(1500));
+        assertEquals(Collections.singletonList("alice"), presence.members(ROOM));
+    }
+
+    @Test
+    public void drainAnnouncesNetChangesByName() {
+        PresenceTable presence = new PresenceTable();
+        presence.seen(ROOM, "client-1", "bob", 1000);
+        presence.seen(ROOM, "client-2", "bob", 1000);
+        presence.seen(ROOM, "client-3", "carol", 1000);
+        presence.leave(ROOM, "client-3");
+
+        List<PresenceTable.Delta> deltas = presence.drain();
+        assertEquals(1, deltas.size());
+        assertEquals(Arrays.asList("bob", "bob"), deltas.get(0).joined);
+        assertEquals(Collections.<String>emptyList(), deltas.get(0).left);
+        assertEquals(2, deltas.get(0).count);
+
+        presence.leave(ROOM, "client-2");
+        deltas = presence.drain();
+        assertEquals(Collections.singletonList("bob"), deltas.get(0).left);
+        assertEquals(1, deltas.get(0).count);
+        assertTrue(presence.drain().isEmpty());
+    }
+}
@@ -0,0 +1,92 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RingQueueTest {
+
+    @Test
+    public void isABoundedFifo() {
+        RingQueue<Integer> queue = new RingQueue<>(1000);
+        assertEquals(1024, queue.capacity());
+
+        // Several laps around the slots
+        int next = 0;
+        for (int lap = 0; lap < 5; lap++) {
+            for (int i = 0; i < queue.capacity(); i++) {
+                assertTrue(queue.offer(lap * queue.capacity() + i));
+            }
+            assertFalse(queue.offer(-1));
+            assertEquals(queue.capacity(), queue.size());
+            for (int i = 0; i < queue.capacity(); i++) {
+                assertEquals(Integer.valueOf(next++), queue.poll());
+            }
+            assertNull(queue.poll());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    // Every element is taken exactly once, and a consumer sees each producer's elements in the order they were offered
+    @Test(timeout = 120_000)
+    public void deliversEveryElementOnceToManyConsumers() throws InterruptedException {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 500_000;
+        final long total = (long) producers * perProducer;
+        RingQueue<Integer> queue = new RingQueue<>(1024);
+        AtomicIntegerArray taken = new AtomicIntegerArray(producers * perProducer);
+        AtomicLong consumed = new AtomicLong();
+        AtomicLong outOfOrder = new AtomicLong();
+
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            final int first = p * perProducer;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    Integer element = first + i;
+                    while (!queue.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads[producers + c] = new Thread(() -> {
+                int[] newest = new int[producers];
+                Arrays.fill(newest, -1);
+                while (consumed.get() < total) {
+                    Integer element = queue.poll();
+                    if (element == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    taken.incrementAndGet(element);
+                    consumed.incrementAndGet();
+                    int producer = element / perProducer;
+                    if (element <= newest[producer]) {
+                        outOfOrder.incrementAndGet();
+                    }
+                    newest[producer] = element;
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(total, consumed.get());
+        assertEquals(0, outOfOrder.get());
+        for (int i = 0; i < taken.length(); i++) {
+            assertEquals("element " + i, 1, taken.get(i));
+        }
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,101 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RoomHistoryTest {
+
+    @Test
+    public void compressedRoomsComeBackUnchanged() {
+        RoomHistory room = new RoomHistory(100);
+        for (int i = 0; i < 250; i++) {
+            room.append("user" + (i % 7) + ": line " + i + (i % 10 == 0 ? " café 😀" : ""));
+        }
+        List<String> before = room.last(100);
+        RoomHistory.Page page = room.page(200, 30);
+        long hotBytes = room.estimatedBytes();
+
+        assertTrue(room.compress());
+        assertTrue(room.isCold());
+        assertFalse(room.compress());
+        assertTrue(room.estimatedBytes() < hotBytes / 2);
+        assertEquals(before, room.peek());
+        assertTrue(room.isCold());
+
+        // Any other access makes the room hot again
+        RoomHistory.Page again = room.page(200, 30);
+        assertFalse(room.isCold());
+        assertEquals(page.cursor, again.cursor);
+        assertEquals(page.lines, again.lines);
+        assertEquals(before, room.last(100));
+        assertEquals(250, room.total());
+
+        room.compress();
+        room.append("after");
+        assertEquals(251, room.total());
+        assertEquals(100, room.size());
+        assertEquals(before.subList(1, 100), room.last(100).subList(0, 99));
+        assertEquals("after", room.last(1).get(0));
+    }
+
+    @Test
+    public void emptyRoomsStayHot() {
+        RoomHistory room = new RoomHistory(10);
+        assertFalse(room.compress());
+        assertFalse(room.isCold());
+    }
+
+    // The sweep compresses rooms while the ingest threads keep appending to them. The room holds every line, so each
+    // one must still be there once, in the order its thread appended it.
+    @Test(timeout = 120_000)
+    public void compressingWhileAppendingLosesNothing() throws InterruptedException {
+        final int appenders = 4;
+        final int perAppender = 5_000;
+        RoomHistory room = new RoomHistory(appenders * perAppender);
+        AtomicBoolean appending = new AtomicBoolean(true);
+        AtomicInteger compressions = new AtomicInteger();
+
+        Thread sweeper = new Thread(() -> {
+            while (appending.get()) {
+                if (room.compress()) {
+                    compressions.incrementAndGet();
+                }
+                room.peek();
+            }
+        });
+        sweeper.start();
+
+        Thread[] threads = new Thread[appenders];
+        for (int t = 0; t < appenders; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perAppender; i++) {
+                    room.append(thread + " " + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appending.set(false);
+        sweeper.join();
+
+        assertTrue(compressions.get() > 0);
+        assertEquals((long) appenders * perAppender, room.total());
+        int[] next = new int[appenders];
+        for (String line : room.last(appenders * perAppender)) {
+            String[] parts = line.split(" ");
+            int thread = Integer.parseInt(parts[0]);
+            assertEquals(line, next[thread]++, Integer.parseInt(parts[1]));
+        }
+        for (int t = 0; t < appenders; t++) {
+            assertEquals(perAppender, next[t]);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    @Test
+    public void findsTheSameLinesAsAScan() {
+        int maxLines = 1000;
+        SearchIndex index = new SearchIndex(maxLines);
+        List<String> added = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder line = new StringBuilder("user").append(random.nextInt(5)).append(':');
+            for (int w = 0; w < 6; w++) {
+                line.append(" w").append(Integer.toString(random.nextInt(200), 36));
+            }
+            index.add("room", line.toString());
+            added.add(line.toString());
+        }
+        assertTrue("keeps at least the newest lines", index.size("room") >= maxLines);
+
+        // Every line still indexed must be found, compared with a scan of the same lines
+        List<String> searchable = added.subList(added.size() - index.size("room"), added.size());
+        for (String query : Arrays.asList("w0", "w1 w2", "USER3 w5", "w1a w4 w9", "missing", "user1")) {
+            List<String> expected = new ArrayList<>();
+            for (String line : searchable) {
+                if (SearchIndex.terms(line).containsAll(SearchIndex.terms(query))) {
+                    expected.add(line);
+                }
+            }
+            List<String> newest = expected.subList(Math.max(0, expected.size() - 20), expected.size());
+            assertEquals(query, newest, index.search("room", query, 20));
+        }
+    }
+
+    @Test
+    public void collidingTermsAreNotConfused() {
+        // "aan" and "ac0" have the same String hash code, checked both while the block fills and once it is sealed
+        assertEquals("aan".hashCode(), "ac0".hashCode());
+        SearchIndex index = new SearchIndex(16);
+        index.add("room", "aan");
+        index.add("room", "ac0");
+        assertEquals(Collections.singletonList("aan"), index.search("room", "aan", 10));
+        assertEquals(Collections.singletonList("ac0"), index.search("room", "ac0", 10));
+        for (int i = 0; i < 16; i++) {
+            index.add("room", "filler");
+        }
+        assertEquals(Collections.singletonList("aan"), index.search("room", "aan", 10));
+        assertEquals(Collections.singletonList("ac0"), index.search("room", "ac0", 10));
+    }
+
+    @Test
+    public void seededLinesComeBeforeIndexedOnes() {
+        SearchIndex index = new SearchIndex(100);
+        index.add("room", "new apple");
+        index.seed("room", Arrays.asList("old apple", "older pear"));
+        assertEquals(Arrays.asList("old apple", "new apple"), index.search("room", "apple", 10));
+        assertEquals(3, index.size("room"));
+    }
+}
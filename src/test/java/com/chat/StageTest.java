@@ -0,0 +1,151 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StageTest {
+
+    // Workers park when idle, tasks offered to parked workers still run
+    @Test(timeout = 60_000)
+    public void wakesParkedWorkersForEveryTask() throws InterruptedException {
+        Stage stage = new Stage("stage-test", 2, 64);
+        try {
+            for (int round = 0; round < 20; round++) {
+                // Long enough for the workers to stop spinning and park
+                Thread.sleep(5);
+                CountDownLatch ran = new CountDownLatch(1);
+                assertTrue(stage.offer(ran::countDown));
+                assertTrue("round " + round, ran.await(5, TimeUnit.SECONDS));
+            }
+
+            AtomicInteger ran = new AtomicInteger();
+            for (int i = 0; i < 100_000; i++) {
+                assertTrue(stage.put(ran::incrementAndGet));
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (ran.get() < 100_000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(100_000, ran.get());
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    // Producers keep offering while the stage closes, every task that was accepted still runs
+    @Test(timeout = 60_000)
+    public void closeRunsEveryAcceptedTask() throws InterruptedException {
+        Stage stage = new Stage("stage-test", 1, 1024);
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong ran = new AtomicLong();
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread(() -> {
+                while (!stage.isStopped()) {
+                    if (stage.offer(ran::incrementAndGet)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        Thread.sleep(50);
+        stage.close();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(accepted.get() > 0);
+        assertEquals(accepted.get(), ran.get());
+        assertFalse(stage.offer(ran::incrementAndGet));
+    }
+
+    // Tasks left in the queue by the workers are run by close, oldest first
+    @Test(timeout = 60_000)
+    public void closeRunsQueuedTasksInOrder() throws InterruptedException {
+        Stage stage = new Stage("stage-test", 1, 16);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        assertTrue(stage.offer(() -> {
+            blocked.countDown();
+            awaitQuietly(release);
+        }));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            final int task = i;
+            assertTrue(stage.offer(() -> order.add(task)));
+        }
+
+        Thread closer = new Thread(() -> {
+            try {
+                stage.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        closer.start();
+        while (!stage.isStopped()) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        closer.join();
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, order);
+    }
+
+    // A producer waiting for room in a full stage gives up once the stage is stopped
+    @Test(timeout = 60_000)
+    public void putReturnsFalseOnceStopped() throws InterruptedException {
+        Stage stage = new Stage("stage-test", 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        assertTrue(stage.offer(() -> {
+            blocked.countDown();
+            awaitQuietly(release);
+        }));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        while (stage.offer(() -> { })) {
+            // Fill the queue behind the blocked task
+        }
+
+        AtomicBoolean queued = new AtomicBoolean(true);
+        CountDownLatch returned = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            queued.set(stage.put(() -> { }));
+            returned.countDown();
+        });
+        producer.start();
+        assertFalse(returned.await(50, TimeUnit.MILLISECONDS));
+
+        stage.shutdown();
+        assertTrue(returned.await(5, TimeUnit.SECONDS));
+        assertFalse(queued.get());
+        assertFalse(stage.put(() -> { }));
+        assertFalse(stage.offer(() -> { }));
+        release.countDown();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.chat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class VarintTest {
+
+    @Test
+    public void roundTripsBoundaryValues() {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1};
+        int[] lengths = {1, 1, 1, 2, 2, 3, 5, 6, 9, 10};
+        byte[] out = new byte[Varint.MAX_BYTES];
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(lengths[i], Varint.write(out, 0, values[i]));
+            assertEquals(lengths[i], Varint.length(out, 0, out.length));
+            assertEquals(values[i], Varint.read(out, 0));
+        }
+    }
+
+    @Test
+    public void incompleteOrOverlongVarintsHaveNoLength() {
+        byte[] out = new byte[Varint.MAX_BYTES];
+        int end = Varint.write(out, 0, 300);
+        assertEquals(-1, Varint.length(out, 0, end - 1));
+
+        byte[] overlong = new byte[Varint.MAX_BYTES + 1];
+        Arrays.fill(overlong, (byte) 0x80);
+        assertEquals(-1, Varint.length(overlong, 0, overlong.length));
+    }
+
+    @Test
+    public void stringsMustEndBeforeTheLimit() {
+        byte[] utf8 = "héllo".getBytes(StandardCharsets.UTF_8);
+        byte[] packed = new byte[1 + utf8.length + 1];
+        int position = Varint.write(packed, 0, utf8.length);
+        System.arraycopy(utf8, 0, packed, position, utf8.length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        assertEquals("héllo", Varint.readString(buffer));
+        assertEquals(packed.length - 1, buffer.position());
+
+        ByteBuffer truncated = ByteBuffer.wrap(packed, 0, packed.length - 2);
+        try {
+            Varint.readString(truncated);
+            fail("A string running past the limit was read");
+        } catch (IllegalArgumentException expected) {
+            assertEquals(0, truncated.position());
+        }
+    }
+}